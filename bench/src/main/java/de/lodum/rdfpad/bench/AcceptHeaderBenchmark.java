@@ -0,0 +1,72 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.lodum.rdfpad.util.AcceptHeader;
+
+/**
+ * Content negotiation for typical Accept headers sent by browsers, Linked Data
+ * clients and crawlers: per request as done by RDFpad (memoized), and the
+ * parser on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptHeaderBenchmark {
+
+	@Param({
+			"text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+			"application/rdf+xml;q=0.9,text/turtle,text/n3;q=0.5",
+			"text/turtle",
+			"none" })
+	public String accept;
+
+	private HttpServletRequest request;
+
+	@Setup
+	public void setup() {
+		request = Requests.withAccept(accept.equals("none") ? null : accept);
+	}
+
+	@Benchmark
+	public String negotiate() {
+		return new AcceptHeader(request).getPrefMIME();
+	}
+
+	@Benchmark
+	public String parse() {
+		return accept.equals("none") ? null : AcceptHeader.parse(accept);
+	}
+}
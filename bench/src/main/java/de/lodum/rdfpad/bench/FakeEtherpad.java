@@ -0,0 +1,182 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+
+/**
+ * Stand-in for an etherpad host that answers the plain text export of any
+ * pad after a fixed delay, through both the API of old etherpads,
+ * <code>/ep/pad/export/&lt;pad&gt;/latest?format=txt</code>, and that of
+ * newer ones, <code>/p/&lt;pad&gt;/export/txt</code>. Each pad holds a
+ * statement naming it, followed by a generated vocabulary of the given size
+ * (see {@link PadFiles}), so that pads differ but cost the same to parse.
+ * Delayed responses are suspended rather than holding a thread, so that the
+ * stand-in is never the bottleneck.
+ */
+public class FakeEtherpad extends AbstractHandler {
+
+	// marks a request that has already been delayed:
+	private static final String DELAYED = "de.lodum.rdfpad.bench.delayed";
+
+	private static final String LEGACY_PREFIX = "/ep/pad/export/";
+	private static final String LEGACY_SUFFIX = "/latest";
+	private static final String CURRENT_PREFIX = "/p/";
+	private static final String CURRENT_SUFFIX = "/export/txt";
+
+	private final long latency;
+	private final double errors;
+	private final boolean legacy;
+	private final byte[] vocabulary;
+	private final Random random = new Random();
+	private final Server server = new Server();
+
+	// resumes delayed requests on time, which the timeouts of suspended
+	// requests do not under load:
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	/**
+	 * Creates a stand-in answering with small pads after the given delay, in
+	 * milliseconds, that speaks the API of newer etherpads.
+	 *
+	 * @param latency
+	 * @throws IOException
+	 */
+	public FakeEtherpad(long latency) throws IOException {
+		this(latency, 0, 0, false);
+	}
+
+	/**
+	 * Creates a stand-in.
+	 *
+	 * @param latency
+	 *            delay of each response, in milliseconds
+	 * @param triples
+	 *            size of the vocabulary in each pad, none if 0
+	 * @param errors
+	 *            share of the exports answered with an error, between 0 and
+	 *            1
+	 * @param legacy
+	 *            whether RDFpad is to take this for an old etherpad, which
+	 *            it does if the legacy export comes with a content length
+	 * @throws IOException
+	 */
+	public FakeEtherpad(long latency, int triples, double errors,
+			boolean legacy) throws IOException {
+		this.latency = latency;
+		this.errors = errors;
+		this.legacy = legacy;
+		this.vocabulary = triples > 0 ? PadFiles.content(triples)
+				: new byte[0];
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setPort(0);
+		connector.setAcceptQueueSize(1024);
+		server.addConnector(connector);
+		server.setHandler(this);
+	}
+
+	/**
+	 * Starts listening on a free port.
+	 *
+	 * @return the port
+	 * @throws Exception
+	 */
+	public int listen() throws Exception {
+		server.start();
+		return server.getConnectors()[0].getLocalPort();
+	}
+
+	/**
+	 * Stops listening.
+	 *
+	 * @throws Exception
+	 */
+	public void close() throws Exception {
+		server.stop();
+		timer.shutdownNow();
+	}
+
+	public void handle(String target, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		baseRequest.setHandled(true);
+		String pad;
+		boolean isLegacy = target.startsWith(LEGACY_PREFIX)
+				&& target.endsWith(LEGACY_SUFFIX);
+		if (isLegacy)
+			pad = target.substring(LEGACY_PREFIX.length(), target.length()
+					- LEGACY_SUFFIX.length());
+		else if (target.startsWith(CURRENT_PREFIX)
+				&& target.endsWith(CURRENT_SUFFIX))
+			pad = target.substring(CURRENT_PREFIX.length(), target.length()
+					- CURRENT_SUFFIX.length());
+		else {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		if (latency > 0 && request.getAttribute(DELAYED) == null) {
+			request.setAttribute(DELAYED, Boolean.TRUE);
+			final Continuation continuation = ContinuationSupport
+					.getContinuation(request);
+			continuation.setTimeout(latency + 60000);
+			continuation.suspend();
+			timer.schedule(new Runnable() {
+				public void run() {
+					continuation.resume();
+				}
+			}, latency, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		boolean fail;
+		synchronized (random) {
+			fail = random.nextDouble() < errors;
+		}
+		if (fail) {
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+		response.setContentType("text/plain; charset=utf-8");
+		// newer etherpads send the legacy export without a content length,
+		// which is how RDFpad tells them apart:
+		if (isLegacy && !legacy)
+			response.flushBuffer();
+		OutputStream out = response.getOutputStream();
+		out.write(("@prefix foaf: <http://xmlns.com/foaf/0.1/> .\n"
+				+ "<http://example.org/pads/" + pad
+				+ "> a foaf:Document ;\n\tfoaf:name \"" + pad + "\" .\n")
+				.getBytes("UTF-8"));
+		out.write(vocabulary);
+	}
+}
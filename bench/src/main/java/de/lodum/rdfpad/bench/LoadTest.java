@@ -0,0 +1,362 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.server.Server;
+
+import de.lodum.rdfpad.RDFpadServer;
+import de.lodum.rdfpad.util.Histogram;
+
+/**
+ * Load test of RDFpad that needs no etherpad: starts a {@link FakeEtherpad}
+ * and an RDFpad server in this JVM, requests the pads of the stand-in from
+ * RDFpad at a fixed rate, as HTML, Turtle, RDF/XML, N-Triples and through
+ * content negotiation, and reports throughput and latency percentiles for
+ * each. Requests are sent on schedule whether or not the earlier ones have
+ * been answered, and their latency counts from that time, so that a server
+ * falling behind shows in the percentiles. Negotiated requests follow the
+ * redirect RDFpad answers them with. A request fails if it is answered with
+ * neither 200 nor 304, or with the page RDFpad shows for pads it cannot get.
+ * Run with
+ *
+ * <pre>
+ * java -Drdfpad.load.rate=200 -cp bench/target/benchmarks.jar de.lodum.rdfpad.bench.LoadTest
+ * </pre>
+ *
+ * The test is configured via the system properties below; those of RDFpad
+ * itself apply to the server under test.
+ */
+public class LoadTest {
+
+	/**
+	 * Default number of requests per second, set via
+	 * <code>rdfpad.load.rate</code>.
+	 */
+	public static final int DEFAULT_RATE = 50;
+
+	/**
+	 * Default duration of the test in seconds, set via
+	 * <code>rdfpad.load.duration</code>.
+	 */
+	public static final int DEFAULT_DURATION = 30;
+
+	/**
+	 * Default time in seconds during which requests are sent at the same
+	 * rate before the test, but not counted, so that the pads are cached
+	 * and the JIT has done its work; set via
+	 * <code>rdfpad.load.warmup</code>.
+	 */
+	public static final int DEFAULT_WARMUP = 10;
+
+	/**
+	 * Default number of distinct pads requested, set via
+	 * <code>rdfpad.load.pads</code>.
+	 */
+	public static final int DEFAULT_PADS = 50;
+
+	/**
+	 * Default size of each pad in triples, set via
+	 * <code>rdfpad.load.triples</code>.
+	 */
+	public static final int DEFAULT_TRIPLES = 1000;
+
+	/**
+	 * Default delay of the stand-in etherpad in milliseconds, set via
+	 * <code>rdfpad.load.latency</code>.
+	 */
+	public static final long DEFAULT_LATENCY = 100;
+
+	/**
+	 * Default share of exports the stand-in etherpad fails, set via
+	 * <code>rdfpad.load.errors</code>.
+	 */
+	public static final String DEFAULT_ERRORS = "0";
+
+	/**
+	 * Default weights of the kinds of requests, set via
+	 * <code>rdfpad.load.mix</code>. The Accept headers of negotiated requests
+	 * take turns.
+	 */
+	public static final String DEFAULT_MIX = "html=3,ttl=2,rdf=1,nt=1,negotiated=3";
+
+	/**
+	 * Default number of connections to RDFpad at most, set via
+	 * <code>rdfpad.load.connections</code>.
+	 */
+	public static final int DEFAULT_CONNECTIONS = 512;
+
+	// RDFpad answers pads it cannot get with a page carrying this, but with
+	// 200 OK:
+	private static final String ERROR_MARKUP = "<p class=\"error\">";
+
+	private static final String[] ACCEPT = {
+			"text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+			"text/turtle", "application/rdf+xml", "text/plain" };
+
+	/**
+	 * The requests of one kind and their outcome.
+	 */
+	private static class Kind {
+		final String name;
+		final String extension;
+		final int weight;
+		final Histogram latencies = new Histogram();
+		final AtomicInteger errors = new AtomicInteger();
+
+		Kind(String name, int weight) {
+			this.name = name;
+			this.extension = name.equals("negotiated") ? "" : "." + name;
+			this.weight = weight;
+		}
+	}
+
+	private static final AtomicInteger outstanding = new AtomicInteger();
+	// bytes received after the warmup:
+	private static final AtomicLong bytes = new AtomicLong();
+
+	// requests due before are part of the warmup:
+	private static volatile long measureFrom;
+
+	public static void main(String[] args) throws Exception {
+		int rate = Integer.getInteger("rdfpad.load.rate", DEFAULT_RATE);
+		int duration = Integer.getInteger("rdfpad.load.duration",
+				DEFAULT_DURATION);
+		int warmup = Integer.getInteger("rdfpad.load.warmup", DEFAULT_WARMUP);
+		int pads = Integer.getInteger("rdfpad.load.pads", DEFAULT_PADS);
+		List<Kind> kinds = parseMix(System.getProperty("rdfpad.load.mix",
+				DEFAULT_MIX));
+
+		FakeEtherpad etherpad = new FakeEtherpad(Long.getLong(
+				"rdfpad.load.latency", DEFAULT_LATENCY), Integer.getInteger(
+				"rdfpad.load.triples", DEFAULT_TRIPLES),
+				Double.parseDouble(System.getProperty("rdfpad.load.errors",
+						DEFAULT_ERRORS)), Boolean
+						.getBoolean("rdfpad.load.legacy"));
+		int etherpadPort = etherpad.listen();
+		Server server = RDFpadServer.createServer(0);
+		server.start();
+		String base = "http://localhost:"
+				+ server.getConnectors()[0].getLocalPort() + "/localhost:"
+				+ etherpadPort + "/p/pad";
+
+		HttpClient client = new HttpClient();
+		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+		client.setMaxConnectionsPerAddress(Integer.getInteger(
+				"rdfpad.load.connections", DEFAULT_CONNECTIONS));
+		client.setTimeout(60000);
+		client.start();
+
+		System.out.println(rate + " requests/s for " + duration
+				+ " s after a warmup of " + warmup + " s over " + pads
+				+ " pads, mix " + describe(kinds));
+		int total = 0;
+		for (Kind kind : kinds)
+			total += kind.weight;
+		Random random = new Random(42);
+		long requests = (long) rate * (warmup + duration);
+		long start = System.nanoTime();
+		measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+		for (long i = 0; i < requests; i++) {
+			long due = start + i * 1000000000L / rate;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+			int pick = random.nextInt(total);
+			Kind kind = null;
+			for (Kind k : kinds) {
+				kind = k;
+				if ((pick -= k.weight) < 0)
+					break;
+			}
+			String url = base + random.nextInt(pads) + kind.extension;
+			new TimedExchange(client, kind, url, ACCEPT[(int) (i % ACCEPT
+					.length)], due).send();
+		}
+		long sent = System.nanoTime();
+		while (outstanding.get() > 0
+				&& System.nanoTime() - sent < TimeUnit.SECONDS.toNanos(70))
+			Thread.sleep(10);
+		long elapsed = System.nanoTime() - measureFrom;
+
+		report(kinds, elapsed);
+		client.stop();
+		server.stop();
+		etherpad.close();
+	}
+
+	private static List<Kind> parseMix(String mix) {
+		List<Kind> kinds = new ArrayList<Kind>();
+		for (String part : mix.split(",")) {
+			String[] pair = part.trim().split("=");
+			int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+			if (weight > 0)
+				kinds.add(new Kind(pair[0].trim(), weight));
+		}
+		if (kinds.isEmpty())
+			throw new IllegalArgumentException("no requests in mix " + mix);
+		return kinds;
+	}
+
+	private static String describe(List<Kind> kinds) {
+		StringBuilder description = new StringBuilder();
+		for (Kind kind : kinds) {
+			if (description.length() > 0)
+				description.append(",");
+			description.append(kind.name).append("=").append(kind.weight);
+		}
+		return description.toString();
+	}
+
+	/**
+	 * A request of some kind, sent again to where RDFpad redirects it.
+	 */
+	private static class TimedExchange extends HttpExchange {
+		private final HttpClient client;
+		private final Kind kind;
+		private final String accept;
+		private final long due;
+		private int status;
+		private String location;
+		private boolean html;
+		private boolean failed;
+
+		// the end of the content seen so far, in case the error markup is
+		// split across two buffers:
+		private String tail = "";
+
+		TimedExchange(HttpClient client, Kind kind, String url, String accept,
+				long due) {
+			this.client = client;
+			this.kind = kind;
+			this.accept = accept;
+			this.due = due;
+			setURL(url);
+			if (kind.extension.length() == 0)
+				setRequestHeader("Accept", accept);
+		}
+
+		@Override
+		protected void onResponseStatus(Buffer version, int status,
+				Buffer reason) throws IOException {
+			this.status = status;
+		}
+
+		@Override
+		protected void onResponseHeader(Buffer name, Buffer value)
+				throws IOException {
+			if (name.toString().equalsIgnoreCase("Location"))
+				location = value.toString();
+			else if (name.toString().equalsIgnoreCase("Content-Type"))
+				html = value.toString().startsWith("text/html");
+		}
+
+		@Override
+		protected void onResponseContent(Buffer content) throws IOException {
+			if (due >= measureFrom)
+				bytes.addAndGet(content.length());
+			if (html && !failed) {
+				String text = tail + content.toString("ISO-8859-1");
+				failed = text.contains(ERROR_MARKUP);
+				tail = text.substring(Math.max(0, text.length()
+						- ERROR_MARKUP.length()));
+			}
+		}
+
+		@Override
+		protected void onResponseComplete() throws IOException {
+			if (status == 303 && location != null) {
+				TimedExchange redirected = new TimedExchange(client, kind,
+						location, accept, due);
+				outstanding.decrementAndGet();
+				redirected.send();
+				return;
+			}
+			done((status == 200 || status == 304) && !failed);
+		}
+
+		@Override
+		protected void onConnectionFailed(Throwable x) {
+			done(false);
+		}
+
+		@Override
+		protected void onException(Throwable x) {
+			done(false);
+		}
+
+		@Override
+		protected void onExpire() {
+			done(false);
+		}
+
+		void send() {
+			outstanding.incrementAndGet();
+			try {
+				client.send(this);
+			} catch (IOException e) {
+				done(false);
+			}
+		}
+
+		void done(boolean ok) {
+			if (due >= measureFrom) {
+				kind.latencies.recordSince(due);
+				if (!ok)
+					kind.errors.incrementAndGet();
+			}
+			outstanding.decrementAndGet();
+		}
+	}
+
+	private static void report(List<Kind> kinds, long elapsed) {
+		Histogram all = new Histogram();
+		int errors = 0;
+		System.out.printf("%-11s %8s %7s %8s %8s %8s %8s %8s %8s%n", "request",
+				"count", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms",
+				"p99.9 ms", "max ms");
+		for (Kind kind : kinds) {
+			line(kind.name, kind.latencies, kind.errors.get(), elapsed);
+			all.add(kind.latencies);
+			errors += kind.errors.get();
+		}
+		line("all", all, errors, elapsed);
+		System.out.printf("%.1f MB received in %.1f s%n",
+				bytes.get() / 1048576.0, elapsed / 1e9);
+	}
+
+	private static void line(String name, Histogram latencies, int errors,
+			long elapsed) {
+		System.out.printf("%-11s %8d %7d %8.1f %8.1f %8.1f %8.1f %8.1f %8.1f%n",
+				name, latencies.getCount(), errors, latencies.getCount() * 1e9
+						/ elapsed, latencies.getValueAtPercentile(50) / 1000.0,
+				latencies.getValueAtPercentile(90) / 1000.0, latencies
+						.getValueAtPercentile(99) / 1000.0, latencies
+						.getValueAtPercentile(99.9) / 1000.0, latencies
+						.getMax() / 1000.0);
+	}
+}
@@ -0,0 +1,134 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Provides pad contents of a given size as local files, so that the
+ * benchmarks do not depend on a live etherpad. The files are generated once
+ * into <code>rdfpad-bench</code> in the temp directory (or the directory set
+ * via the system property <code>rdfpad.bench.dir</code>) and reused by later
+ * runs.
+ */
+public class PadFiles {
+
+	/** Base URI the benchmark pads are parsed against. */
+	public static final String BASE = "http://example.org/p/bench/export/txt";
+
+	/**
+	 * Returns a Turtle file with (roughly) the given number of triples,
+	 * generating it if necessary.
+	 *
+	 * @param triples
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized File get(int triples) throws IOException {
+		File dir = new File(System.getProperty("rdfpad.bench.dir", new File(
+				System.getProperty("java.io.tmpdir"), "rdfpad-bench")
+				.getPath()));
+		File file = new File(dir, "pad-" + triples + ".ttl");
+		if (!file.exists()) {
+			dir.mkdirs();
+			File tmp = new File(dir, file.getName() + ".tmp");
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(tmp), "UTF-8"));
+			try {
+				write(triples, out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file))
+				throw new IOException("could not create " + file);
+		}
+		return file;
+	}
+
+	/**
+	 * Reads the contents of the pad with the given number of triples.
+	 *
+	 * @param triples
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] content(int triples) throws IOException {
+		InputStream in = new FileInputStream(get(triples));
+		try {
+			byte[] content = new byte[in.available()];
+			int read = 0;
+			while (read < content.length)
+				read += in.read(content, read, content.length - read);
+			return content;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the pad with the given number of triples into a fresh model.
+	 *
+	 * @param triples
+	 * @return
+	 * @throws IOException
+	 */
+	public static Model model(int triples) throws IOException {
+		Model model = ModelFactory.createDefaultModel();
+		InputStream in = new FileInputStream(get(triples));
+		try {
+			model.read(in, BASE, "TTL");
+		} finally {
+			in.close();
+		}
+		return model;
+	}
+
+	/**
+	 * Writes a vocabulary-like pad: classes and properties with labels,
+	 * comments and typed literals, five triples per subject.
+	 */
+	private static void write(int triples, PrintWriter out) {
+		out.println("@prefix rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> .");
+		out.println("@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .");
+		out.println("@prefix owl: <http://www.w3.org/2002/07/owl#> .");
+		out.println("@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .");
+		out.println("@prefix dcterms: <http://purl.org/dc/terms/> .");
+		out.println("@prefix ex: <http://example.org/vocab#> .");
+		out.println();
+		int subjects = Math.max(1, triples / 5);
+		for (int i = 0; i < subjects; i++) {
+			out.println("ex:Term" + i + " a "
+					+ (i % 3 == 0 ? "owl:Class" : "rdf:Property") + " ;");
+			out.println("    rdfs:label \"Term number " + i + "\"@en ;");
+			out.println("    rdfs:comment \"A generated term with <markup> & "
+					+ "\\\"quotes\\\", used for benchmarking (" + i + ").\" ;");
+			out.println("    dcterms:created \"2011-04-" + (10 + i % 20)
+					+ "\"^^xsd:date ;");
+			out.println("    rdfs:seeAlso ex:Term" + ((i * 7 + 1) % subjects)
+					+ " .");
+			out.println();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Minimal stand-in for the servlet requests RDFpad gets from Jetty, carrying
+ * nothing but an Accept header.
+ */
+public class Requests {
+
+	/**
+	 * Returns a request with the given Accept header (none if null).
+	 *
+	 * @param accept
+	 * @return
+	 */
+	public static HttpServletRequest withAccept(final String accept) {
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				Requests.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						boolean isAccept = args != null && args.length == 1
+								&& "accept".equalsIgnoreCase((String) args[0]);
+						if (name.equals("getHeaders")) {
+							List<String> values = isAccept && accept != null ? Collections
+									.singletonList(accept)
+									: Collections.<String> emptyList();
+							return Collections.enumeration(values);
+						}
+						if (name.equals("getHeader"))
+							return isAccept ? accept : null;
+						return null;
+					}
+				});
+	}
+}
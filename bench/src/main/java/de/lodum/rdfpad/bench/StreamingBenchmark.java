@@ -0,0 +1,85 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.lodum.rdfpad.util.TurtleStreamer;
+
+/**
+ * Conversion of pad contents into Turtle and N-Triples without a model, as
+ * done for pads whose serialization is not cached yet. This replaces parsing
+ * (ParseBenchmark) plus serializing (SerializationBenchmark) for these two
+ * formats. The output only counts bytes, as for a client reading the stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class StreamingBenchmark {
+
+	@Param({ "100", "10000", "500000" })
+	public int triples;
+
+	@Param({ "TURTLE", "N-TRIPLE" })
+	public String lang;
+
+	private byte[] content;
+
+	@Setup
+	public void setup() throws IOException {
+		content = PadFiles.content(triples);
+	}
+
+	@Benchmark
+	public long stream() throws IOException {
+		CountingStream out = new CountingStream();
+		TurtleStreamer.write(new ByteArrayInputStream(content), PadFiles.BASE,
+				lang, out);
+		return out.count;
+	}
+
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
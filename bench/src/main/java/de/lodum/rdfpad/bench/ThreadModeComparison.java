@@ -0,0 +1,206 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+
+import de.lodum.rdfpad.RDFpadServer;
+
+/**
+ * Compares handling requests on platform threads with handling them on
+ * virtual threads while the etherpad is slow. For each mode, an RDFpad server
+ * is started in this JVM against a {@link FakeEtherpad}, and a fixed number
+ * of clients ask it for pads that are not cached yet: once as Turtle, where
+ * the request is suspended during the download, and once through /sparql,
+ * which waits for the download on the request thread. Run on Java 21 or later
+ * with
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar de.lodum.rdfpad.bench.ThreadModeComparison [latency in ms] [clients] [requests]
+ * </pre>
+ *
+ * The platform threads are limited to 50 unless rdfpad.server.threads says
+ * otherwise.
+ */
+public class ThreadModeComparison {
+
+	private static final String[] SCENARIOS = { "ttl", "sparql" };
+
+	public static void main(String[] args) throws Exception {
+		long latency = args.length > 0 ? Long.parseLong(args[0]) : 500;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+		setDefault("rdfpad.server.threads", "50");
+		// neither the connections to the etherpad nor background refreshes
+		// should get in the way:
+		setDefault("rdfpad.upstream.connections", String.valueOf(clients));
+		setDefault("rdfpad.upstream.queue", String.valueOf(clients));
+		setDefault("rdfpad.refresh.concurrency", "0");
+		setDefault("http.maxConnections", String.valueOf(clients));
+
+		FakeEtherpad etherpad = new FakeEtherpad(latency);
+		int etherpadPort = etherpad.listen();
+		System.out.println("etherpad latency " + latency + " ms, " + clients
+				+ " clients, " + requests + " requests per run, "
+				+ System.getProperty("rdfpad.server.threads")
+				+ " platform threads");
+		System.out.printf("%-8s %-9s %9s %7s %7s %7s %7s %7s %8s%n",
+				"scenario", "threads", "req/s", "p50 ms", "p90 ms", "p99 ms",
+				"max ms", "errors", "peak jvm");
+		int run = 0;
+		for (String scenario : SCENARIOS) {
+			for (boolean virtual : new boolean[] { false, true }) {
+				System.setProperty("rdfpad.server.virtual",
+						String.valueOf(virtual));
+				Server server = RDFpadServer.createServer(0);
+				if (virtual
+						&& !(server.getThreadPool() instanceof ExecutorThreadPool)) {
+					System.out.printf("%-8s %-9s no virtual threads in this JVM%n",
+							scenario, "virtual");
+					continue;
+				}
+				server.start();
+				try {
+					int port = server.getConnectors()[0].getLocalPort();
+					String[] urls = new String[requests];
+					for (int i = 0; i < requests; i++)
+						urls[i] = url(scenario, port, etherpadPort, "r" + run
+								+ "x" + i);
+					report(scenario, virtual ? "virtual" : "platform", drive(
+							urls, clients));
+				} finally {
+					server.stop();
+				}
+				run++;
+			}
+		}
+		etherpad.close();
+	}
+
+	private static void setDefault(String name, String value) {
+		if (System.getProperty(name) == null)
+			System.setProperty(name, value);
+	}
+
+	/**
+	 * Returns the URL asking RDFpad for a pad not requested before.
+	 */
+	private static String url(String scenario, int port, int etherpadPort,
+			String pad) throws IOException {
+		String padURL = "localhost:" + etherpadPort + "/p/" + pad;
+		if (scenario.equals("sparql"))
+			return "http://localhost:" + port + "/sparql?query="
+					+ URLEncoder.encode("ASK { ?s ?p ?o }", "UTF-8") + "&pad="
+					+ URLEncoder.encode("http://" + padURL, "UTF-8");
+		return "http://localhost:" + port + "/" + padURL + ".ttl";
+	}
+
+	/**
+	 * The outcome of one run.
+	 */
+	private static class Result {
+		long[] latencies;
+		int errors;
+		long nanos;
+		int peakThreads;
+	}
+
+	/**
+	 * Requests all URLs from the given number of clients at once.
+	 */
+	private static Result drive(final String[] urls, int clients)
+			throws InterruptedException {
+		final Result result = new Result();
+		result.latencies = new long[urls.length];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			pool.execute(new Runnable() {
+				public void run() {
+					for (int i = next.getAndIncrement(); i < urls.length; i = next
+							.getAndIncrement()) {
+						long begin = System.nanoTime();
+						if (!fetch(urls[i]))
+							errors.incrementAndGet();
+						result.latencies[i] = System.nanoTime() - begin;
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.HOURS);
+		result.nanos = System.nanoTime() - start;
+		result.errors = errors.get();
+		result.peakThreads = threads.getPeakThreadCount();
+		return result;
+	}
+
+	/**
+	 * Reads the response to a GET request, returning whether it was 200 OK.
+	 */
+	private static boolean fetch(String url) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url)
+					.openConnection();
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream()
+					: connection.getErrorStream();
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) != -1)
+					;
+				in.close();
+			}
+			return status == HttpURLConnection.HTTP_OK;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static void report(String scenario, String mode, Result result) {
+		long[] sorted = result.latencies.clone();
+		Arrays.sort(sorted);
+		System.out.printf("%-8s %-9s %9.1f %7d %7d %7d %7d %7d %8d%n",
+				scenario, mode, sorted.length * 1e9 / result.nanos, millis(
+						sorted, 0.5), millis(sorted, 0.9),
+				millis(sorted, 0.99), millis(sorted, 1), result.errors,
+				result.peakThreads);
+	}
+
+	private static long millis(long[] sorted, double quantile) {
+		int i = (int) Math.ceil(quantile * sorted.length) - 1;
+		return sorted[Math.max(i, 0)] / 1000000;
+	}
+}
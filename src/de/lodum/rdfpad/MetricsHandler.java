@@ -0,0 +1,59 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import de.lodum.rdfpad.util.Metrics;
+
+/**
+ * Serves the {@link Metrics} of the server at <code>/metrics</code> in the
+ * Prometheus text format; all other requests are left to the next handler.
+ */
+public class MetricsHandler extends AbstractHandler {
+
+	/**
+	 * The path the metrics are served at.
+	 */
+	public static final String PATH = "/metrics";
+
+	@Override
+	public void handle(String target, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		if (!PATH.equals(request.getRequestURI()))
+			return;
+		baseRequest.setHandled(true);
+		if (!"GET".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		response.setHeader("Cache-Control", "no-cache");
+		Writer out = new OutputStreamWriter(response.getOutputStream(),
+				"UTF-8");
+		Metrics.write(out);
+	}
+}
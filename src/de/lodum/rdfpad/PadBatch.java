@@ -0,0 +1,518 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.openjena.riot.out.OutputLangUtils;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.shared.Lock;
+
+import de.lodum.rdfpad.util.AcceptHeader;
+import de.lodum.rdfpad.util.CachedPad;
+import de.lodum.rdfpad.util.Counter;
+import de.lodum.rdfpad.util.HTMLModel;
+import de.lodum.rdfpad.util.Metrics;
+import de.lodum.rdfpad.util.ModelCache;
+
+/**
+ * Serves many pads at once as a single dataset at <code>/batch</code>, with
+ * each pad in a named graph called by its etherpad URL. The pads are given
+ * as <code>pad</code> parameters, or one per line in the body of a POST
+ * request of type text/plain or text/uri-list.
+ * <p>
+ * The pads are downloaded and parsed in parallel, with a limit on the
+ * downloads per batch and per etherpad host, and each graph is written as
+ * soon as its pad is ready, so graphs come in the order the pads complete.
+ * The dataset is written as N-Quads, or as TriG if the client asks for it
+ * with <code>format=trig</code> or in its Accept header. A pad that cannot
+ * be downloaded or parsed gets a graph of its own holding a single
+ * {@link #ERROR} statement about the pad, so that the other pads are still
+ * served.
+ */
+public class PadBatch {
+
+	/**
+	 * The path batches are served at.
+	 */
+	public static final String PATH = "/batch";
+
+	/**
+	 * The property relating a pad that failed to the reason why.
+	 */
+	public static final String ERROR = "http://rdfpad.lodum.de/ns#error";
+
+	/**
+	 * Default number of threads parsing the pads of all batches.
+	 */
+	public static final int DEFAULT_THREADS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * Default number of pads of a batch that are downloaded at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	/**
+	 * Default number of pads of a batch that are downloaded from the same
+	 * etherpad host at the same time.
+	 */
+	public static final int DEFAULT_PER_HOST = 4;
+
+	/**
+	 * Default number of pads a batch may ask for.
+	 */
+	public static final int DEFAULT_MAX_PADS = 500;
+
+	/**
+	 * Default time a batch may take, in seconds.
+	 */
+	public static final long DEFAULT_TIMEOUT = 120;
+
+	private static final String TRIG = "application/trig";
+
+	// the content types a batch can be negotiated as, by preference:
+	private static final String[] TYPES = { "application/n-quads", TRIG };
+
+	private static final Node ERROR_NODE = Node.createURI(ERROR);
+
+	private static final Counter PADS_SERVED = Metrics.counter(
+			"rdfpad_batch_pads_total", "Pads asked for in batches, by result.",
+			"result", "served");
+	private static final Counter PADS_FAILED = Metrics.counter(
+			"rdfpad_batch_pads_total", "Pads asked for in batches, by result.",
+			"result", "failed");
+
+	private final ModelCache cache;
+	private final HTMLModel html;
+	private final int threads;
+	private final int concurrency;
+	private final int perHost;
+	private final int maxPads;
+	private final long timeout;
+
+	private ExecutorService executor;
+
+	/**
+	 * Creates a batch handler loading pads through the given renderer and
+	 * cache, configured from the system properties
+	 * <code>rdfpad.batch.threads</code>,
+	 * <code>rdfpad.batch.concurrency</code>,
+	 * <code>rdfpad.batch.host</code>, <code>rdfpad.batch.pads</code> and
+	 * <code>rdfpad.batch.timeout</code> (seconds).
+	 *
+	 * @param cache
+	 * @param html
+	 */
+	public PadBatch(ModelCache cache, HTMLModel html) {
+		this(cache, html, Integer.getInteger("rdfpad.batch.threads",
+				DEFAULT_THREADS), Integer.getInteger(
+				"rdfpad.batch.concurrency", DEFAULT_CONCURRENCY), Integer
+				.getInteger("rdfpad.batch.host", DEFAULT_PER_HOST), Integer
+				.getInteger("rdfpad.batch.pads", DEFAULT_MAX_PADS), Long
+				.getLong("rdfpad.batch.timeout", DEFAULT_TIMEOUT) * 1000);
+	}
+
+	/**
+	 * @param cache
+	 * @param html
+	 * @param threads
+	 *            threads parsing the pads of all batches
+	 * @param concurrency
+	 *            pads of a batch that are downloaded at the same time
+	 * @param perHost
+	 *            pads of a batch that are downloaded from the same host at
+	 *            the same time
+	 * @param maxPads
+	 *            pads a batch may ask for
+	 * @param timeout
+	 *            time a batch may take, in milliseconds
+	 */
+	public PadBatch(ModelCache cache, HTMLModel html, int threads,
+			int concurrency, int perHost, int maxPads, long timeout) {
+		this.cache = cache;
+		this.html = html;
+		this.threads = Math.max(1, threads);
+		this.concurrency = Math.max(1, concurrency);
+		this.perHost = Math.max(1, perHost);
+		this.maxPads = maxPads;
+		this.timeout = timeout;
+	}
+
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "rdfpad-batch-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public synchronized void stop() {
+		if (executor != null)
+			executor.shutdownNow();
+		executor = null;
+	}
+
+	/**
+	 * Answers a request for a batch of pads. The request thread waits for
+	 * the pads and writes each graph as soon as it is ready; pads still
+	 * missing when the batch times out are reported as failed.
+	 *
+	 * @param baseRequest
+	 * @param request
+	 * @param response
+	 * @throws IOException
+	 */
+	public void handle(Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		baseRequest.setHandled(true);
+		if (!"GET".equals(request.getMethod())
+				&& !"POST".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+
+		List<URL> pads;
+		try {
+			pads = readPads(request);
+		} catch (MalformedURLException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"Invalid pad URL: " + e.getMessage());
+			return;
+		}
+		if (pads.isEmpty()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"No pads given");
+			return;
+		}
+		if (pads.size() > maxPads) {
+			response.sendError(
+					HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					"At most " + maxPads + " pads per batch");
+			return;
+		}
+		ExecutorService executor;
+		synchronized (this) {
+			executor = this.executor;
+		}
+		if (executor == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		boolean trig = isTriG(request);
+		response.setContentType(trig ? "application/trig; charset=UTF-8"
+				: "application/n-quads; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.setStatus(HttpServletResponse.SC_OK);
+		Writer out = new BufferedWriter(new OutputStreamWriter(response
+				.getOutputStream(), "UTF-8"));
+
+		// URLs are compared by their text, as URL.equals() looks up hosts:
+		Set<String> missing = new LinkedHashSet<String>();
+		for (URL pad : pads)
+			missing.add(pad.toExternalForm());
+		Batch batch = new Batch(pads, executor);
+		batch.startNext();
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (!missing.isEmpty()) {
+				long remaining = deadline - System.currentTimeMillis();
+				Result result = remaining > 0 ? batch.results.poll(remaining,
+						TimeUnit.MILLISECONDS) : null;
+				if (result == null)
+					break;
+				missing.remove(result.pad);
+				write(result, trig, out);
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			batch.cancelled = true;
+		}
+		for (String pad : missing)
+			write(new Result(pad, "Timed out while loading " + pad), trig, out);
+		out.flush();
+	}
+
+	/**
+	 * Returns the distinct pads asked for, in the order given: the
+	 * <code>pad</code> parameters, or the lines of a plain text body, leaving
+	 * out empty lines and comments starting with <code>#</code>.
+	 *
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 * @throws MalformedURLException
+	 *             if one of the pads is not a URL
+	 */
+	private static List<URL> readPads(HttpServletRequest request)
+			throws IOException {
+		Set<String> names = new LinkedHashSet<String>();
+		String contentType = request.getContentType();
+		if ("POST".equals(request.getMethod())
+				&& contentType != null
+				&& (contentType.startsWith("text/plain") || contentType
+						.startsWith("text/uri-list"))) {
+			BufferedReader in = request.getReader();
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#"))
+					names.add(line);
+			}
+		} else {
+			String[] values = request.getParameterValues("pad");
+			if (values != null)
+				for (String value : values)
+					if (value.trim().length() > 0)
+						names.add(value.trim());
+		}
+		List<URL> pads = new ArrayList<URL>(names.size());
+		for (String name : names) {
+			URL pad = new URL(name);
+			if (!pad.getProtocol().startsWith("http"))
+				throw new MalformedURLException(name);
+			pads.add(pad);
+		}
+		return pads;
+	}
+
+	/**
+	 * Returns true if TriG is asked for rather than N-Quads, by the
+	 * <code>format</code> parameter or, taking q values into account, the
+	 * Accept header.
+	 *
+	 * @param request
+	 * @return
+	 */
+	private static boolean isTriG(HttpServletRequest request) {
+		String format = request.getParameter("format");
+		if (format != null)
+			return format.equalsIgnoreCase("trig");
+		String accept = request.getHeader("Accept");
+		return accept != null
+				&& TRIG.equals(AcceptHeader.negotiate(accept, TYPES));
+	}
+
+	/**
+	 * Writes the graph of a pad, or the statement telling why it failed.
+	 *
+	 * @param result
+	 * @param trig
+	 * @param out
+	 * @throws IOException
+	 */
+	private static void write(Result result, boolean trig, Writer out)
+			throws IOException {
+		Node graph = Node.createURI(result.pad);
+		List<Triple> triples = result.triples;
+		if (triples == null) {
+			triples = new ArrayList<Triple>(1);
+			triples.add(Triple.create(graph, ERROR_NODE, Node
+					.createLiteral(result.error)));
+			PADS_FAILED.increment();
+		} else {
+			PADS_SERVED.increment();
+		}
+		if (trig) {
+			OutputLangUtils.output(out, graph, null);
+			out.write(" {\n");
+			for (Triple triple : triples)
+				OutputLangUtils.output(out, triple, null);
+			out.write("}\n");
+		} else {
+			for (Triple triple : triples)
+				OutputLangUtils.output(out, triple, graph, null);
+		}
+	}
+
+	/**
+	 * The statements of a pad, or why they could not be had.
+	 */
+	private static class Result {
+		final String pad;
+		final List<Triple> triples;
+		final String error;
+
+		Result(String pad, List<Triple> triples) {
+			this.pad = pad;
+			this.triples = triples;
+			this.error = null;
+		}
+
+		Result(String pad, String error) {
+			this.pad = pad;
+			this.triples = null;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * The pads of one request. Downloads are started as long as the limits
+	 * allow, first by the request thread and then by the threads that have
+	 * parsed a pad, never by the threads of the HTTP client, since finding
+	 * the export URL of a pad may have to wait for the etherpad.
+	 */
+	private class Batch {
+		final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		volatile boolean cancelled = false;
+
+		private final LinkedList<URL> waiting;
+		private final ExecutorService executor;
+		private final Map<String, Integer> hosts = new HashMap<String, Integer>();
+		private int active = 0;
+
+		Batch(List<URL> pads, ExecutorService executor) {
+			this.waiting = new LinkedList<URL>(pads);
+			this.executor = executor;
+		}
+
+		/**
+		 * Starts downloading the waiting pads whose hosts are below their
+		 * limit, as long as the batch is below its own.
+		 */
+		void startNext() {
+			List<URL> starting = new ArrayList<URL>();
+			synchronized (this) {
+				if (cancelled)
+					return;
+				for (Iterator<URL> it = waiting.iterator(); it.hasNext()
+						&& active < concurrency;) {
+					URL pad = it.next();
+					Integer loading = hosts.get(pad.getHost());
+					if (loading != null && loading >= perHost)
+						continue;
+					it.remove();
+					hosts.put(pad.getHost(), loading == null ? 1 : loading + 1);
+					active++;
+					starting.add(pad);
+				}
+			}
+			for (URL pad : starting)
+				load(pad);
+		}
+
+		private void load(final URL pad) {
+			try {
+				html.loadPad(pad, new ModelCache.LoadListener() {
+					public void loaded(CachedPad cached) {
+						parse(pad, cached, null);
+					}
+
+					public void failed(Throwable failure) {
+						parse(pad, null, failure);
+					}
+				});
+			} catch (RuntimeException e) {
+				parse(pad, null, e);
+			}
+		}
+
+		/**
+		 * Hands a downloaded pad to the parsing threads.
+		 */
+		private void parse(final URL pad, final CachedPad cached,
+				final Throwable failure) {
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						Result result = read(pad, cached, failure);
+						finished(pad);
+						results.add(result);
+						startNext();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				finished(pad);
+				results.add(new Result(pad.toExternalForm(),
+						"The server is shutting down"));
+			}
+		}
+
+		private synchronized void finished(URL pad) {
+			active--;
+			int loading = hosts.get(pad.getHost());
+			if (loading > 1)
+				hosts.put(pad.getHost(), loading - 1);
+			else
+				hosts.remove(pad.getHost());
+		}
+
+		private Result read(URL pad, CachedPad cached, Throwable failure) {
+			if (failure != null)
+				return new Result(pad.toExternalForm(), message(failure));
+			Model model;
+			try {
+				model = cache.getModel(cached);
+			} catch (JenaException e) {
+				return new Result(pad.toExternalForm(), message(e));
+			}
+			model.enterCriticalSection(Lock.READ);
+			try {
+				return new Result(pad.toExternalForm(), model.getGraph().find(
+						Node.ANY, Node.ANY, Node.ANY).toList());
+			} finally {
+				model.leaveCriticalSection();
+			}
+		}
+	}
+
+	private static String message(Throwable failure) {
+		String message = failure.getLocalizedMessage();
+		return message != null ? message : failure.toString();
+	}
+}
@@ -16,47 +16,221 @@
 package de.lodum.rdfpad;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.JenaException;
 
 import de.lodum.rdfpad.util.AcceptHeader;
+import de.lodum.rdfpad.util.CachedPad;
+import de.lodum.rdfpad.util.EtherpadHosts;
+import de.lodum.rdfpad.util.Counter;
+import de.lodum.rdfpad.util.Gzip;
+import de.lodum.rdfpad.util.Metrics;
 import de.lodum.rdfpad.util.HTMLModel;
+import de.lodum.rdfpad.util.ModelCache;
+import de.lodum.rdfpad.util.RefreshScheduler;
+import de.lodum.rdfpad.util.SnapshotStore;
+import de.lodum.rdfpad.util.TermDictionary;
+import de.lodum.rdfpad.util.UpstreamClient;
 
 public class RDFpad extends AbstractHandler {
 
-	Logger logger;
+	private static final Logger logger = LoggerFactory.getLogger(RDFpad.class);
 
-	private AcceptHeader accept;
-	private HTMLModel html;
+	// attribute under which a pad downloaded while the request was
+	// suspended is handed to the resumed request:
+	private static final String PAD_ATTRIBUTE = "de.lodum.rdfpad.pad";
+
+	// pads found in the cache without going through ModelCache.load():
+	private static final Counter CACHE_HITS = Metrics.counter(
+			"rdfpad_cache_requests_total",
+			"Pads asked for, by whether they were cached.", "result", "hit");
+
+	// asynchronous client for downloads from the etherpads:
+	private final UpstreamClient upstream = new UpstreamClient();
+
+	// the last contents of each pad, kept on disk across restarts:
+	private final SnapshotStore snapshots = new SnapshotStore();
+
+	// parsed pads, shared by all requests:
+	private final ModelCache cache = new ModelCache(upstream, snapshots);
+
+	// keeps the pads requested recently fresh in the background:
+	private final RefreshScheduler refresher = new RefreshScheduler(cache);
+
+	// export APIs of the etherpad hosts seen so far:
+	private final EtherpadHosts hosts = new EtherpadHosts(upstream);
+
+	// the handler is shared by all worker threads, so everything that
+	// depends on the request lives in local variables; the fields above are
+	// thread-safe and the HTML renderer keeps no per-request state:
+	private final HTMLModel html = new HTMLModel(cache, hosts);
+
+	// serves many pads at once as one dataset:
+	private final PadBatch batch = new PadBatch(cache, html);
+
+	// answers SPARQL queries against the cached pads; loading the pads of a
+	// query may take as long as a retried download:
+	private final SparqlEndpoint sparql = new SparqlEndpoint(cache, html,
+			2 * upstream.getTimeout() + 1000);
+
+	@Override
+	protected void doStart() throws Exception {
+		snapshots.start();
+		// the hosts of restored pads need not be probed again:
+		for (String exportURL : snapshots.getExportURLs())
+			hosts.remember(exportURL);
+		upstream.start();
+		cache.start();
+		html.start();
+		refresher.start();
+		batch.start();
+		registerGauges();
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		batch.stop();
+		refresher.stop();
+		html.stop();
+		cache.stop();
+		upstream.stop();
+		snapshots.stop();
+	}
 
 	/**
-	 * Entry point for the server, handles all incoming requests. 
+	 * Makes the state and counts of the cache, the background refreshes, the
+	 * snapshots and the etherpad hosts part of the {@link Metrics}.
+	 */
+	private void registerGauges() {
+		Metrics.gauge("rdfpad_cache_pads", "Pads in the cache.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return cache.size();
+					}
+				});
+		Metrics.gauge("rdfpad_cache_weight_bytes",
+				"Estimated heap taken by the cached pads.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return cache.getWeight();
+					}
+				});
+		Metrics.gauge("rdfpad_store_terms",
+				"Terms in the dictionary the cached pads are encoded with.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return TermDictionary.current().size();
+					}
+				});
+		Metrics.counter("rdfpad_cache_loads_total",
+				"Downloads started by the cache.", new Metrics.Reading() {
+					public long getValue() {
+						return cache.getLoads();
+					}
+				});
+		Metrics.counter("rdfpad_cache_deduplicated_total",
+				"Requests that joined a download already in progress.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return cache.getDeduplicated();
+					}
+				});
+		Metrics.counter("rdfpad_cache_updates_total",
+				"Models updated from the changed statements only.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return cache.getUpdates();
+					}
+				});
+		Metrics.gauge("rdfpad_upstream_unavailable_hosts",
+				"Etherpad hosts not asked at the moment as they kept failing.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return upstream.getUnavailableHosts();
+					}
+				});
+		Metrics.gauge("rdfpad_snapshots", "Pads with a snapshot on disk.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return snapshots.size();
+					}
+				});
+		Metrics.gauge("rdfpad_refresh_pads",
+				"Pads kept fresh in the background.", new Metrics.Reading() {
+					public long getValue() {
+						return refresher.getTracked();
+					}
+				});
+		Metrics.counter("rdfpad_refresh_completed_total",
+				"Background refreshes completed.", new Metrics.Reading() {
+					public long getValue() {
+						return refresher.getRefreshes();
+					}
+				});
+		Metrics.counter("rdfpad_refresh_changed_total",
+				"Background refreshes that brought new contents.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return refresher.getChanged();
+					}
+				});
+		Metrics.counter("rdfpad_refresh_failed_total",
+				"Background refreshes that failed.", new Metrics.Reading() {
+					public long getValue() {
+						return refresher.getFailed();
+					}
+				});
+		Metrics.counter("rdfpad_refresh_dropped_total",
+				"Pads no longer refreshed for lack of requests.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return refresher.getDropped();
+					}
+				});
+		Metrics.gauge("rdfpad_refresh_lag_max_milliseconds",
+				"Longest delay of a background refresh past its due time.",
+				new Metrics.Reading() {
+					public long getValue() {
+						return refresher.getLagMax();
+					}
+				});
+	}
+
+	/**
+	 * Entry point for the server, handles all incoming requests. Requests
+	 * for pads that are not cached are suspended while the pad is downloaded
+	 * and handled again once it has arrived, so that no thread waits for the
+	 * etherpad.
 	 */
 	@Override
 	public void handle(String target, Request baseRequest,
 			HttpServletRequest request, HttpServletResponse response)
 			throws IOException, ServletException {
 
-		// drop any requests that are looking for static files;
-		// they will be handled by the ResourceHandler in RDFpadServer:
-		if(request.getRequestURI().startsWith("/files"))
+		if (request.getRequestURI().equals(PadBatch.PATH)) {
+			batch.handle(baseRequest, request, response);
+			return;
+		}
+		if (request.getRequestURI().equals(SparqlEndpoint.PATH)) {
+			sparql.handle(baseRequest, request, response);
 			return;
-		
-		
-		this.logger = LoggerFactory.getLogger(RDFpad.class);
+		}
 
 		// forward an input from the form to the permanent URL for the contents
 		// of the corresponding pad:
@@ -72,8 +246,7 @@ public class RDFpad extends AbstractHandler {
 			return;
 		}
 
-		accept = new AcceptHeader(request);
-		html = new HTMLModel();
+		AcceptHeader accept = new AcceptHeader(request);
 
 		// check which pad to convert
 		String pad = "http:/" + request.getRequestURI();
@@ -85,12 +258,31 @@ public class RDFpad extends AbstractHandler {
 		} else if (pad.endsWith("favicon.ico")) {
 			response.sendError(404);
 		} else if (pad.endsWith(".html") || pad.endsWith(".htm")) {
-			html.getHTML(baseRequest, request, response);
+			CachedPad cached;
+			try {
+				cached = awaitPad(new URL(pad.split(".htm")[0]), baseRequest,
+						request);
+			} catch (Exception e) {
+				html.showForm(true, e.getLocalizedMessage(), baseRequest,
+						request, response);
+				return;
+			}
+			if (cached == null)
+				return;
+			try {
+				cache.getModel(cached);
+			} catch (JenaException e) {
+				html.showForm(true, e.getLocalizedMessage(), baseRequest,
+						request, response);
+				return;
+			}
+			markStale(cached, response);
+			html.getHTML(cached, baseRequest, request, response);
 		} else if ((pad.split("/"))[pad.split("/").length - 1].contains(".")) {
 
-			getRDF(baseRequest, request, response);
+			getRDF(accept, baseRequest, request, response);
 		} else {
-			negotiateContent(baseRequest, request, response);
+			negotiateContent(accept, baseRequest, request, response);
 		}
 
 	}
@@ -100,11 +292,12 @@ public class RDFpad extends AbstractHandler {
 	 * Forwards to a URI with a file extension that is comliant with the MIME
 	 * type preferred by the client.
 	 * 
+	 * @param accept
 	 * @param baseRequest
 	 * @param request
 	 * @param response
 	 */
-	private void negotiateContent(Request baseRequest,
+	private void negotiateContent(AcceptHeader accept, Request baseRequest,
 			HttpServletRequest request, HttpServletResponse response) {
 
 		String fwd = html.getRequestBaseURL(request) + request.getRequestURI();
@@ -127,65 +320,259 @@ public class RDFpad extends AbstractHandler {
 
 	/**
 	 * Transforms the padContents to the request serialization using Jena.
+	 * Serializations are cached along with the parsed pad and carry a strong
+	 * ETag derived from the pad contents, so that conditional requests can be
+	 * answered with a 304 without serializing anything. Clients that accept
+	 * gzip get a compressed variant, which is cached as well. Turtle and
+	 * N-Triples of large pads are streamed instead, see
+	 * {@link ModelCache#isStreamed(CachedPad, String)}.
 	 * 
 	 * @throws IOException
 	 * @throws MalformedURLException
 	 * 
 	 */
-	private void getRDF(Request baseRequest, HttpServletRequest request,
-			HttpServletResponse response) throws MalformedURLException,
-			IOException {
+	private void getRDF(AcceptHeader accept, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws MalformedURLException, IOException {
 		String requestURI = request.getRequestURI();
+
+		String lang, contentType;
+		if (requestURI.endsWith(".ttl")) {
+			lang = "TURTLE";
+			contentType = "text/turtle; charset=UTF-8";
+		} else if (requestURI.endsWith(".rdf")) {
+			lang = "RDF/XML-ABBREV";
+			contentType = "application/rdf+xml; charset=UTF-8";
+		} else if (requestURI.endsWith(".nt")) {
+			lang = "N-TRIPLE";
+			contentType = "text/plain; charset=UTF-8";
+		} else if (requestURI.endsWith(".n3")) {
+			lang = "N3";
+			contentType = "text/n3; charset=UTF-8";
+		} else {
+			logger.error(accept.getPrefMIME());
+			response.sendError(404);
+			baseRequest.setHandled(true);
+			return;
+		}
+
 		int lastDot = requestURI.lastIndexOf(".");
-		String exportURL = html.getPadContentURL(new URL(("http:/" + requestURI
-				.substring(0, lastDot))));
-		response.setCharacterEncoding("UTF-8");
-		PrintWriter writer = response.getWriter();
-		
 
-		// we try to build a Jena model and then serialize it: 
+		// we try to get the Jena model (cached or freshly parsed) and then
+		// serialize it:
 
-		Model model = ModelFactory.createDefaultModel();
+		CachedPad pad;
 		try {
-			 // BufferedReader in = new BufferedReader( new InputStreamReader(new URL(exportURL).openStream(),"UTF-8"));
-			//model.read(exportURL, "TTL");
-			model.read(exportURL,exportURL, "TTL");
+			pad = awaitPad(new URL(("http:/" + requestURI.substring(0,
+					lastDot))), baseRequest, request);
 		} catch (Exception e) {
 			html.showForm(true, e.getLocalizedMessage(), baseRequest, request,
 					response);
 			return;
 		}
-		//PrintWriter out = new PrintWriter(new OutputStreamWriter(respne.getOutputStream(), "UTF8"));
+		if (pad == null)
+			return;
+		markStale(pad, response);
 
-		if (requestURI.endsWith(".ttl")) {
-			response.setContentType("text/turtle; charset=UTF-8");
-			response.setStatus(HttpServletResponse.SC_OK);
-			baseRequest.setHandled(true);
-			model.write(writer, "TURTLE");
-		}else if (requestURI.endsWith(".rdf")) {
-			response.setContentType("application/rdf+xml; charset=UTF-8");
-			response.setStatus(HttpServletResponse.SC_OK);
-			baseRequest.setHandled(true);
-			model.write(writer, "RDF/XML-ABBREV");
+		// the response is compressed if the client accepts gzip, unless it
+		// is too small for that to pay off:
+		response.setHeader("Vary", "Accept-Encoding");
+		boolean gzip = Gzip.isAccepted(request);
+		baseRequest.setHandled(true);
 
-		} else if (requestURI.endsWith(".nt")) { //
-			response.setContentType("text/plain; charset=UTF-8");
-			response.setStatus(HttpServletResponse.SC_OK);
-			baseRequest.setHandled(true);
-			model.write(writer, "N-TRIPLE");
+		if (cache.isStreamed(pad, lang)) {
+			String etag = pad.getETag(gzip ? lang + CachedPad.GZIP : lang);
+			response.setHeader("ETag", etag);
+			if (matches(request.getHeader("If-None-Match"), etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			streamRDF(pad, lang, contentType, gzip, baseRequest, request,
+					response);
+			return;
+		}
 
-		} else if (requestURI.endsWith(".n3")) {
-			response.setContentType("text/n3; charset=UTF-8");
-			response.setStatus(HttpServletResponse.SC_OK);
-			baseRequest.setHandled(true);
-			model.write(writer, "N3");
+		// the ETags do not depend on the serialization, so conditional
+		// requests are answered before anything is serialized; whether a
+		// client that accepts gzip got the compressed variant depends on the
+		// size of the serialization, so either tag matches:
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		String etag = pad.getETag(lang);
+		String gzipETag = pad.getETag(lang + CachedPad.GZIP);
+		if (gzip && matches(ifNoneMatch, gzipETag)) {
+			response.setHeader("ETag", gzipETag);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		if (matches(ifNoneMatch, etag)) {
+			response.setHeader("ETag", etag);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
 
-		} else {
-			logger.error(accept.getPrefMIME());
-			response.sendError(404);
-			baseRequest.setHandled(true);
+		byte[] body;
+		try {
+			body = cache.getSerialization(pad, lang);
+			gzip = gzip && Gzip.isWorthIt(body.length);
+			if (gzip)
+				body = cache.getCompressedSerialization(pad, lang);
+		} catch (JenaException e) {
+			response.reset();
+			html.showForm(true, e.getLocalizedMessage(), baseRequest, request,
+					response);
+			return;
+		}
+
+		response.setHeader("ETag", gzip ? gzipETag : etag);
+		response.setContentType(contentType);
+		if (gzip)
+			response.setHeader("Content-Encoding", "gzip");
+		response.setContentLength(body.length);
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.getOutputStream().write(body);
+	}
+
+	/**
+	 * Writes Turtle or N-Triples to the client while they are converted from
+	 * the contents of a large pad, so that neither a model nor the whole
+	 * serialization has to be held in memory; if the client accepts gzip,
+	 * they are compressed on the fly. If the pad turns out to be invalid
+	 * after the response has been committed, the connection is closed so
+	 * that the client does not take the truncated response for a complete
+	 * one.
+	 * 
+	 * @throws IOException
+	 */
+	private void streamRDF(CachedPad pad, String lang, String contentType,
+			boolean gzip, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		response.setContentType(contentType);
+		response.setStatus(HttpServletResponse.SC_OK);
+		try {
+			if (gzip) {
+				GZIPOutputStream out = Gzip.compress(response);
+				cache.stream(pad, lang, out);
+				out.finish();
+			} else {
+				cache.stream(pad, lang, response.getOutputStream());
+			}
+		} catch (JenaException e) {
+			logger.warn("Invalid pad " + pad.getExportURL() + ": "
+					+ e.getMessage());
+			if (!response.isCommitted()) {
+				response.reset();
+				html.showForm(true, e.getLocalizedMessage(), baseRequest,
+						request, response);
+			} else {
+				baseRequest.getConnection().getEndPoint().close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the parsed pad for the given etherpad URL if it is cached or
+	 * has been downloaded while this request was suspended. Otherwise, the
+	 * request is suspended, the download is started and null is returned; the
+	 * request will be dispatched again once the pad has arrived. Pads that
+	 * are returned are kept fresh in the background for a while.
+	 * 
+	 * @param padURL
+	 * @param baseRequest
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 *             if the pad could not be downloaded or parsed
+	 */
+	private CachedPad awaitPad(URL padURL, Request baseRequest,
+			final HttpServletRequest request) throws IOException {
+		Object loaded = request.getAttribute(PAD_ATTRIBUTE);
+		if (loaded instanceof CachedPad) {
+			refresher.touch(((CachedPad) loaded).getExportURL());
+			return (CachedPad) loaded;
+		}
+		if (loaded instanceof IOException)
+			throw (IOException) loaded;
+		if (loaded instanceof RuntimeException)
+			throw (RuntimeException) loaded;
+		if (loaded instanceof Throwable)
+			throw new IOException((Throwable) loaded);
+
+		final Continuation continuation = ContinuationSupport
+				.getContinuation(request);
+		if (continuation.isExpired())
+			throw new IOException("Timed out while loading " + padURL);
+
+		// the cache is only looked at if that does not mean probing the
+		// host, which is left to HTMLModel.loadPad:
+		CachedPad pad = hosts.isKnown(padURL) ? cache.get(html
+				.getPadContentURL(padURL)) : null;
+		if (pad != null) {
+			CACHE_HITS.increment();
+			refresher.touch(pad.getExportURL());
+			return pad;
 		}
 
+		// retrying after a failed download may take twice as long:
+		continuation.setTimeout(2 * upstream.getTimeout() + 1000);
+		continuation.suspend();
+		baseRequest.setHandled(true);
+		html.loadPad(padURL, new ModelCache.LoadListener() {
+			public void loaded(CachedPad pad) {
+				resume(pad);
+			}
+
+			public void failed(Throwable failure) {
+				resume(failure);
+			}
+
+			private void resume(Object result) {
+				request.setAttribute(PAD_ATTRIBUTE, result);
+				try {
+					continuation.resume();
+				} catch (IllegalStateException e) {
+					// the request has timed out in the meantime
+				}
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Adds the Age and Warning headers to the response if the pad is served
+	 * although it has expired, because it is being downloaded again or the
+	 * download has failed.
+	 * 
+	 * @param pad
+	 * @param response
+	 */
+	private void markStale(CachedPad pad, HttpServletResponse response) {
+		if (!cache.isExpired(pad))
+			return;
+		response.setHeader("Age", String.valueOf((System.currentTimeMillis() - pad
+				.getLoadedAt()) / 1000));
+		if (pad.isRevalidationFailed())
+			response.setHeader("Warning", "111 - \"Revalidation Failed\"");
+		else
+			response.setHeader("Warning", "110 - \"Response is Stale\"");
+	}
+
+	/**
+	 * Checks whether an If-None-Match header lists the given entity tag.
+	 * 
+	 * @param ifNoneMatch
+	 *            the header value, may be null
+	 * @param etag
+	 * @return
+	 */
+	static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*") || tag.equals(etag))
+				return true;
+		}
+		return false;
 	}
 
 }
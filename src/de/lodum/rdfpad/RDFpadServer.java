@@ -16,42 +16,193 @@
 
 package de.lodum.rdfpad;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.HandlerList;
-import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.server.handler.RequestLogHandler;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class RDFpadServer {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(RDFpadServer.class);
+
+	/**
+	 * Default maximum number of threads handling requests, as in Jetty. Can
+	 * be set via the system property <code>rdfpad.server.threads</code>.
+	 */
+	public static final int DEFAULT_THREADS = 254;
+
+	/**
+	 * Default number of threads kept around while there is nothing to do.
+	 * Can be set via the system property <code>rdfpad.server.minthreads</code>.
+	 */
+	public static final int DEFAULT_MIN_THREADS = 8;
+
+	/**
+	 * Default number of threads accepting connections and waiting for them
+	 * to become readable. Can be set via the system property
+	 * <code>rdfpad.server.acceptors</code>.
+	 */
+	public static final int DEFAULT_ACCEPTORS = 1;
+
+	/**
+	 * Default length of the queue of connections not accepted yet; 0 leaves
+	 * it to the operating system. Can be set via the system property
+	 * <code>rdfpad.server.acceptqueue</code>.
+	 */
+	public static final int DEFAULT_ACCEPT_QUEUE = 0;
+
+	/**
+	 * Default time after which an idle connection is closed, in seconds. Can
+	 * be set via the system property <code>rdfpad.server.idle</code>.
+	 */
+	public static final long DEFAULT_IDLE = 200;
+
+	/**
+	 * Default time after which an idle connection is closed while the server
+	 * runs low on threads, in seconds. Can be set via the system property
+	 * <code>rdfpad.server.lowidle</code>.
+	 */
+	public static final long DEFAULT_LOW_RESOURCES_IDLE = 5;
+
 	/**
 	 * Starts the engines...
-	 * 
+	 *
 	 * @param args
-	 *            - the port number to start the server on
+	 *            - the port number to start the server on, optionally
+	 *            followed by a properties file with further settings
 	 * @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
+		if (args.length > 1)
+			loadProperties(new File(args[1]));
+
+		Server server = createServer(new Integer(args[0]));
+		server.start();
+		server.join();
+	}
+
+	/**
+	 * Makes the settings in a properties file system properties, unless they
+	 * have been set on the command line already.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void loadProperties(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+			String name = ((String) entry.getKey()).trim();
+			if (System.getProperty(name) == null)
+				System.setProperty(name, ((String) entry.getValue()).trim());
+		}
+	}
 
+	/**
+	 * Sets up a server on the given port as configured by the
+	 * <code>rdfpad.server.*</code> system properties, without starting it.
+	 *
+	 * @param port
+	 *            - the port to listen on, 0 for any free one
+	 * @return
+	 */
+	public static Server createServer(int port) {
 		Server server = new Server();
+		server.setThreadPool(createThreadPool());
+
 		SelectChannelConnector connector = new SelectChannelConnector();
-		connector.setPort(new Integer(args[0]));
-		
-		
-		//connector.setPort(new Integer(args[0]));
-        server.addConnector(connector);
- 
-        ResourceHandler resource_handler = new ResourceHandler();
-        resource_handler.setDirectoriesListed(true);
-        resource_handler.setWelcomeFiles(new String[]{ "" });
- 
-        resource_handler.setResourceBase(".");
- 
-        HandlerList handlers = new HandlerList();
-        handlers.setHandlers(new Handler[] { new RDFpad(), resource_handler });
-        server.setHandler(handlers);
- 
-        server.start();
-        server.join();
+		connector.setPort(port);
+		connector.setAcceptors(Integer.getInteger("rdfpad.server.acceptors",
+				DEFAULT_ACCEPTORS));
+		connector.setAcceptQueueSize(Integer.getInteger(
+				"rdfpad.server.acceptqueue", DEFAULT_ACCEPT_QUEUE));
+		connector.setMaxIdleTime((int) (Long.getLong("rdfpad.server.idle",
+				DEFAULT_IDLE) * 1000));
+		connector.setLowResourcesMaxIdleTime((int) (Long.getLong(
+				"rdfpad.server.lowidle", DEFAULT_LOW_RESOURCES_IDLE) * 1000));
+		server.addConnector(connector);
 
+		// the static files come first, as every HTML view refers to them:
+		HandlerList handlers = new HandlerList();
+		handlers.setHandlers(new Handler[] { new StaticFiles(),
+				new MetricsHandler(), new RDFpad() });
+
+		// time every request once it is complete:
+		RequestLogHandler metrics = new RequestLogHandler();
+		metrics.setRequestLog(new RequestMetrics());
+		metrics.setHandler(handlers);
+		server.setHandler(metrics);
+		return server;
+	}
+
+	/**
+	 * Returns the threads requests are handled on: a new virtual thread for
+	 * each if the system property <code>rdfpad.server.virtual</code> is true
+	 * and the JVM has them, a bounded pool of platform threads otherwise.
+	 *
+	 * @return
+	 */
+	static ThreadPool createThreadPool() {
+		if (Boolean.getBoolean("rdfpad.server.virtual")) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor != null)
+				return new ExecutorThreadPool(executor);
+			logger.warn("Virtual threads need Java 21 or later, handling requests on platform threads instead");
+		}
+		QueuedThreadPool pool = new QueuedThreadPool(Integer.getInteger(
+				"rdfpad.server.threads", DEFAULT_THREADS));
+		pool.setMinThreads(Integer.getInteger("rdfpad.server.minthreads",
+				DEFAULT_MIN_THREADS));
+		pool.setName("rdfpad");
+		return pool;
+	}
+
+	/**
+	 * Returns an executor starting a virtual thread for each task, or null if
+	 * this JVM has none. The API is looked up by reflection, as RDFpad still
+	 * builds for older Java versions.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, "rdfpad-", 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod(
+					"factory").invoke(builder);
+			return (ExecutorService) Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class).invoke(
+					null, factory);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			// e.g. virtual threads still being a preview feature:
+			logger.warn("Cannot create virtual threads: " + e);
+			return null;
+		}
 	}
 }
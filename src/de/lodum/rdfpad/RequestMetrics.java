@@ -0,0 +1,81 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+import de.lodum.rdfpad.util.Counter;
+import de.lodum.rdfpad.util.Histogram;
+import de.lodum.rdfpad.util.Metrics;
+
+/**
+ * Records every completed request in the {@link Metrics}: its duration by
+ * the kind of view asked for, its status and the bytes sent. As a request log
+ * it sees requests once they are complete, including those that were
+ * suspended while their pad was downloaded.
+ */
+public class RequestMetrics extends AbstractLifeCycle implements RequestLog {
+
+	private static final Counter BYTES_OUT = Metrics.counter(
+			"rdfpad_response_bytes_total",
+			"Bytes sent to clients, after compression.");
+
+	public void log(Request request, Response response) {
+		Metrics.histogram("rdfpad_request_seconds",
+				"Time from receiving a request to completing the response, "
+						+ "by view.", "view", getView(request.getRequestURI()))
+				.record((System.currentTimeMillis() - request.getTimeStamp()) * 1000);
+		Metrics.counter("rdfpad_requests_total",
+				"Requests completed, by status.", "status",
+				String.valueOf(response.getStatus())).increment();
+		BYTES_OUT.add(Math.max(0, response.getContentCount()));
+	}
+
+	/**
+	 * Returns the kind of view a request asks for: the extension of a pad
+	 * URL, "files" for static files, "metrics", "batch", "sparql", or
+	 * "other" for everything else, e.g. the form or content negotiation.
+	 *
+	 * @param uri
+	 * @return
+	 */
+	static String getView(String uri) {
+		if (uri == null)
+			return "other";
+		if (uri.startsWith(StaticFiles.PATH))
+			return "files";
+		if (uri.equals(MetricsHandler.PATH))
+			return "metrics";
+		if (uri.equals(PadBatch.PATH))
+			return "batch";
+		if (uri.equals(SparqlEndpoint.PATH))
+			return "sparql";
+		String name = uri.substring(uri.lastIndexOf('/') + 1);
+		int dot = name.lastIndexOf('.');
+		if (dot < 0)
+			return "other";
+		String extension = name.substring(dot + 1);
+		if (extension.startsWith("htm"))
+			return "html";
+		if (extension.equals("rdf") || extension.equals("nt")
+				|| extension.equals("ttl") || extension.equals("n3"))
+			return extension;
+		return "other";
+	}
+}
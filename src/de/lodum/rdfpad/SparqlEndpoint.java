@@ -0,0 +1,645 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryExecException;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.util.FileUtils;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.Filter;
+
+import de.lodum.rdfpad.util.AcceptHeader;
+import de.lodum.rdfpad.util.CachedPad;
+import de.lodum.rdfpad.util.Counter;
+import de.lodum.rdfpad.util.HTMLModel;
+import de.lodum.rdfpad.util.Histogram;
+import de.lodum.rdfpad.util.Metrics;
+import de.lodum.rdfpad.util.ModelCache;
+
+/**
+ * Answers SPARQL queries at <code>/sparql</code> against the models of the
+ * cached pads, so that querying a pad does not mean downloading and parsing
+ * it once more. The query is given as the <code>query</code> parameter or as
+ * the body of a POST request of type application/sparql-query; the pads to
+ * query as <code>pad</code> or <code>default-graph-uri</code> parameters, or
+ * else in the FROM clauses of the query. Several pads are queried as the
+ * union of their statements. Queries using SERVICE are rejected, so that
+ * the server cannot be made to request other URLs.
+ * <p>
+ * Results are kept in a cache of limited size, keyed by the query as
+ * serialized by ARQ, which does away with differences in whitespace and
+ * the like, the result format and the content hashes of the pads, so that a
+ * cached result is never out of date. Queries that take too long are
+ * stopped: the installed ARQ cannot abort a query evaluated in memory, so
+ * the graph the query runs against gives up once the time is over.
+ */
+public class SparqlEndpoint {
+
+	/**
+	 * The path queries are answered at.
+	 */
+	public static final String PATH = "/sparql";
+
+	/**
+	 * Default time a query may take, in seconds.
+	 */
+	public static final long DEFAULT_TIMEOUT = 10;
+
+	/**
+	 * Default size of the result cache, in megabytes.
+	 */
+	public static final long DEFAULT_CACHE_SIZE = 16;
+
+	/**
+	 * Default number of pads a query may ask for.
+	 */
+	public static final int DEFAULT_MAX_PADS = 20;
+
+	// the content types results can be negotiated as, by preference:
+	private static final String[] RESULT_TYPES = {
+			"application/sparql-results+xml",
+			"application/sparql-results+json", "application/json",
+			"text/csv", "text/tab-separated-values" };
+	private static final String[] GRAPH_TYPES = { "text/turtle",
+			"application/rdf+xml", "application/n-triples", "text/plain" };
+
+	// evaluates queries like ARQ does, except for SERVICE:
+	private static final OpExecutorFactory NO_SERVICE = new OpExecutorFactory() {
+		public OpExecutor create(ExecutionContext context) {
+			return new OpExecutor(context) {
+				@Override
+				protected QueryIterator execute(OpService service,
+						QueryIterator input) {
+					throw new QueryExecException("SERVICE is not supported");
+				}
+			};
+		}
+	};
+
+	private static final Counter HITS = Metrics.counter(
+			"rdfpad_sparql_queries_total", "SPARQL queries, by result.",
+			"result", "hit");
+	private static final Counter MISSES = Metrics.counter(
+			"rdfpad_sparql_queries_total", "SPARQL queries, by result.",
+			"result", "miss");
+	private static final Counter TIMEOUTS = Metrics.counter(
+			"rdfpad_sparql_queries_total", "SPARQL queries, by result.",
+			"result", "timeout");
+	private static final Histogram QUERY_TIME = Metrics.histogram(
+			"rdfpad_sparql_seconds",
+			"Time to evaluate a SPARQL query and write its results.");
+
+	private final ModelCache cache;
+	private final HTMLModel html;
+	private final long loadTimeout;
+	private final long timeout;
+	private final long maxWeight;
+	private final int maxPads;
+
+	// access-ordered, so iteration starts with the least recently used result:
+	private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(
+			16, 0.75f, true);
+	private long weight = 0;
+
+	/**
+	 * The serialized results of a query.
+	 */
+	private static class Result {
+		final String contentType;
+		final byte[] body;
+
+		Result(String contentType, byte[] body) {
+			this.contentType = contentType;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Thrown by the graph a query runs against once the query has taken
+	 * too long.
+	 */
+	private static class QueryTimeoutException extends QueryExecException {
+		private static final long serialVersionUID = 1L;
+
+		QueryTimeoutException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Creates an endpoint loading pads through the given renderer and cache,
+	 * configured from the system properties
+	 * <code>rdfpad.sparql.timeout</code> (seconds),
+	 * <code>rdfpad.sparql.cache</code> (megabytes) and
+	 * <code>rdfpad.sparql.pads</code>.
+	 *
+	 * @param cache
+	 * @param html
+	 * @param loadTimeout
+	 *            time to wait for the pads of a query, in milliseconds
+	 */
+	public SparqlEndpoint(ModelCache cache, HTMLModel html, long loadTimeout) {
+		this(cache, html, loadTimeout, Long.getLong("rdfpad.sparql.timeout",
+				DEFAULT_TIMEOUT) * 1000, Long.getLong("rdfpad.sparql.cache",
+				DEFAULT_CACHE_SIZE) * 1024 * 1024, Integer.getInteger(
+				"rdfpad.sparql.pads", DEFAULT_MAX_PADS));
+	}
+
+	/**
+	 * @param cache
+	 * @param html
+	 * @param loadTimeout
+	 *            time to wait for the pads of a query, in milliseconds
+	 * @param timeout
+	 *            time a query may take, in milliseconds
+	 * @param maxWeight
+	 *            size of the result cache, in bytes
+	 * @param maxPads
+	 *            pads a query may ask for
+	 */
+	public SparqlEndpoint(ModelCache cache, HTMLModel html, long loadTimeout,
+			long timeout, long maxWeight, int maxPads) {
+		this.cache = cache;
+		this.html = html;
+		this.loadTimeout = loadTimeout;
+		this.timeout = timeout;
+		this.maxWeight = maxWeight;
+		this.maxPads = maxPads;
+	}
+
+	/**
+	 * Answers a query. The request thread waits for the pads that are not
+	 * cached yet and evaluates the query unless its results are cached.
+	 *
+	 * @param baseRequest
+	 * @param request
+	 * @param response
+	 * @throws IOException
+	 */
+	public void handle(Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		baseRequest.setHandled(true);
+		if (!"GET".equals(request.getMethod())
+				&& !"POST".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+
+		Query query;
+		List<URL> pads;
+		try {
+			query = readQuery(request);
+			pads = getPads(query, request);
+		} catch (QueryException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e
+					.getMessage());
+			return;
+		} catch (MalformedURLException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"Invalid pad URL: " + e.getMessage());
+			return;
+		}
+		if (pads.isEmpty()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"No pads given");
+			return;
+		}
+		if (pads.size() > maxPads) {
+			response.sendError(
+					HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					"At most " + maxPads + " pads per query");
+			return;
+		}
+
+		List<CachedPad> loaded;
+		try {
+			loaded = loadPads(pads);
+		} catch (IOException e) {
+			response.sendError(HttpServletResponse.SC_BAD_GATEWAY, e
+					.getMessage());
+			return;
+		}
+
+		String[] format = getFormat(query, request);
+		StringBuilder key = new StringBuilder(format[0]).append('\n').append(
+				query.serialize());
+		// pads are parsed against their export URL, so the same contents
+		// may give different triples for different pads:
+		for (CachedPad pad : loaded)
+			key.append('\n').append(pad.getExportURL()).append(' ').append(
+					pad.getContentHash());
+
+		Result result = get(key.toString());
+		if (result != null) {
+			HITS.increment();
+		} else {
+			MISSES.increment();
+			try {
+				result = execute(query, loaded, format);
+			} catch (QueryTimeoutException e) {
+				TIMEOUTS.increment();
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+						e.getMessage());
+				return;
+			} catch (JenaException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e
+						.getMessage());
+				return;
+			}
+			put(key.toString(), result);
+		}
+
+		response.setContentType(result.contentType);
+		response.setHeader("Vary", "Accept");
+		response.setContentLength(result.body.length);
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.getOutputStream().write(result.body);
+	}
+
+	/**
+	 * Reads the query from the <code>query</code> parameter or the body of
+	 * the request.
+	 *
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 * @throws QueryException
+	 *             if there is no query or it is not valid
+	 */
+	private static Query readQuery(HttpServletRequest request)
+			throws IOException {
+		String queryString;
+		String contentType = request.getContentType();
+		if ("POST".equals(request.getMethod()) && contentType != null
+				&& contentType.startsWith("application/sparql-query")) {
+			InputStream in = request.getInputStream();
+			queryString = FileUtils.readWholeFileAsUTF8(in);
+		} else {
+			queryString = request.getParameter("query");
+		}
+		if (queryString == null || queryString.trim().length() == 0)
+			throw new QueryException("No query given");
+		Query query = QueryFactory.create(queryString, Syntax.syntaxARQ);
+		// SERVICE would let clients make the server request any URL:
+		OpWalker.walk(Algebra.compile(query), new OpVisitorBase() {
+			@Override
+			public void visit(OpService service) {
+				throw new QueryException("SERVICE is not supported");
+			}
+		});
+		return query;
+	}
+
+	/**
+	 * Returns the distinct pads the query asks for: the <code>pad</code> and
+	 * <code>default-graph-uri</code> parameters, or else the FROM clauses of
+	 * the query.
+	 *
+	 * @param query
+	 * @param request
+	 * @return
+	 * @throws MalformedURLException
+	 * @throws QueryException
+	 *             if the query asks for named graphs, which pads do not
+	 *             have
+	 */
+	private static List<URL> getPads(Query query, HttpServletRequest request)
+			throws MalformedURLException {
+		if (!query.getNamedGraphURIs().isEmpty()
+				|| request.getParameter("named-graph-uri") != null)
+			throw new QueryException("Named graphs are not supported");
+		Set<String> names = new LinkedHashSet<String>();
+		for (String parameter : new String[] { "pad", "default-graph-uri" }) {
+			String[] values = request.getParameterValues(parameter);
+			if (values != null)
+				names.addAll(Arrays.asList(values));
+		}
+		if (names.isEmpty())
+			names.addAll(query.getGraphURIs());
+		List<URL> pads = new ArrayList<URL>(names.size());
+		for (String name : names) {
+			URL pad = new URL(name.trim());
+			if (!pad.getProtocol().startsWith("http"))
+				throw new MalformedURLException(name);
+			pads.add(pad);
+		}
+		return pads;
+	}
+
+	/**
+	 * Loads the given pads through the cache, waiting for those that are
+	 * not cached.
+	 *
+	 * @param pads
+	 * @return the pads, parsed
+	 * @throws IOException
+	 *             if one of the pads could not be downloaded or parsed
+	 */
+	private List<CachedPad> loadPads(List<URL> pads) throws IOException {
+		final CachedPad[] loaded = new CachedPad[pads.size()];
+		final Throwable[] failures = new Throwable[pads.size()];
+		final CountDownLatch done = new CountDownLatch(pads.size());
+		for (int i = 0; i < pads.size(); i++) {
+			final int index = i;
+			try {
+				html.loadPad(pads.get(i), new ModelCache.LoadListener() {
+					public void loaded(CachedPad pad) {
+						loaded[index] = pad;
+						done.countDown();
+					}
+
+					public void failed(Throwable failure) {
+						failures[index] = failure;
+						done.countDown();
+					}
+				});
+			} catch (RuntimeException e) {
+				failures[index] = e;
+				done.countDown();
+			}
+		}
+		try {
+			if (!done.await(loadTimeout, TimeUnit.MILLISECONDS))
+				throw new IOException("Timed out while loading the pads");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading the pads");
+		}
+
+		List<CachedPad> result = new ArrayList<CachedPad>(pads.size());
+		for (int i = 0; i < pads.size(); i++) {
+			if (failures[i] != null)
+				throw new IOException("Could not load " + pads.get(i) + ": "
+						+ failures[i].getLocalizedMessage());
+			try {
+				cache.getModel(loaded[i]);
+			} catch (JenaException e) {
+				throw new IOException("Invalid pad " + pads.get(i) + ": "
+						+ e.getLocalizedMessage());
+			}
+			result.add(loaded[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the Jena name of the format the results are written in and
+	 * their content type, chosen by the <code>format</code> parameter or,
+	 * taking q values into account, the Accept header: SPARQL results in
+	 * XML, JSON, CSV or TSV for SELECT and ASK queries, Turtle, RDF/XML or
+	 * N-Triples for the others.
+	 *
+	 * @param query
+	 * @param request
+	 * @return
+	 */
+	private static String[] getFormat(Query query, HttpServletRequest request) {
+		String format = request.getParameter("format");
+		if (format == null) {
+			String accept = request.getHeader("Accept");
+			if (accept != null)
+				format = AcceptHeader.negotiate(accept, query.isSelectType()
+						|| query.isAskType() ? RESULT_TYPES : GRAPH_TYPES);
+		}
+		format = format == null ? "" : format.toLowerCase();
+		if (query.isSelectType() || query.isAskType()) {
+			if (format.contains("json"))
+				return new String[] { "json",
+						"application/sparql-results+json; charset=UTF-8" };
+			if (format.contains("csv"))
+				return new String[] { "csv", "text/csv; charset=UTF-8" };
+			if (format.contains("tsv") || format.contains("tab-separated"))
+				return new String[] { "tsv",
+						"text/tab-separated-values; charset=UTF-8" };
+			return new String[] { "xml",
+					"application/sparql-results+xml; charset=UTF-8" };
+		}
+		if (format.contains("rdf"))
+			return new String[] { "RDF/XML-ABBREV",
+					"application/rdf+xml; charset=UTF-8" };
+		if (format.contains("n-triples") || format.equals("nt")
+				|| format.contains("text/plain"))
+			return new String[] { "N-TRIPLE", "text/plain; charset=UTF-8" };
+		return new String[] { "TURTLE", "text/turtle; charset=UTF-8" };
+	}
+
+	/**
+	 * Evaluates a query against the union of the given pads and writes its
+	 * results. The models are locked meanwhile, so that they are not
+	 * updated under the query.
+	 *
+	 * @param query
+	 * @param pads
+	 *            parsed pads
+	 * @param format
+	 *            as returned by {@link #getFormat(Query, HttpServletRequest)}
+	 * @return
+	 * @throws QueryTimeoutException
+	 *             if the query takes too long
+	 */
+	private Result execute(Query query, List<CachedPad> pads, String[] format) {
+		long start = System.nanoTime();
+		List<Model> models = new ArrayList<Model>(pads.size());
+		Graph[] graphs = new Graph[pads.size()];
+		for (int i = 0; i < graphs.length; i++) {
+			Model model = pads.get(i).getModel();
+			models.add(model);
+			graphs[i] = model.getGraph();
+		}
+		Graph union = graphs.length == 1 ? graphs[0] : new MultiUnion(graphs);
+		Model dataset = ModelFactory.createModelForGraph(new TimedGraph(
+				union, System.currentTimeMillis() + timeout));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int locked = 0;
+		QueryExecution execution = QueryExecutionFactory.create(query,
+				dataset);
+		// SERVICE hidden in expressions, e.g. in FILTER EXISTS, is only
+		// found while executing:
+		QC.setFactory(execution.getContext(), NO_SERVICE);
+		try {
+			for (Model model : models) {
+				model.enterCriticalSection(Lock.READ);
+				locked++;
+			}
+			if (query.isSelectType())
+				write(execution.execSelect(), format[0], out);
+			else if (query.isAskType())
+				write(execution.execAsk(), format[0], out);
+			else {
+				Model graph = query.isConstructType() ? execution
+						.execConstruct() : execution.execDescribe();
+				graph.setNsPrefixes(query.getPrefixMapping());
+				graph.write(out, format[0]);
+			}
+		} finally {
+			execution.close();
+			for (int i = 0; i < locked; i++)
+				models.get(i).leaveCriticalSection();
+		}
+		QUERY_TIME.recordSince(start);
+		return new Result(format[1], out.toByteArray());
+	}
+
+	private static void write(ResultSet results, String format,
+			ByteArrayOutputStream out) {
+		if (format.equals("json"))
+			ResultSetFormatter.outputAsJSON(out, results);
+		else if (format.equals("csv"))
+			ResultSetFormatter.outputAsCSV(out, results);
+		else if (format.equals("tsv"))
+			ResultSetFormatter.outputAsTSV(out, results);
+		else
+			ResultSetFormatter.outputAsXML(out, results);
+	}
+
+	private static void write(boolean result, String format,
+			ByteArrayOutputStream out) {
+		if (format.equals("json"))
+			ResultSetFormatter.outputAsJSON(out, result);
+		else if (format.equals("csv"))
+			ResultSetFormatter.outputAsCSV(out, result);
+		else if (format.equals("tsv"))
+			ResultSetFormatter.outputAsTSV(out, result);
+		else
+			ResultSetFormatter.outputAsXML(out, result);
+	}
+
+	/**
+	 * A view of a graph that throws a {@link QueryTimeoutException} from
+	 * any lookup once a deadline has passed. Every step of evaluating a
+	 * query in memory looks up triples, so this stops the query soon after.
+	 */
+	private static class TimedGraph extends WrappedGraph {
+
+		private final long deadline;
+
+		private final Filter<Triple> check = new Filter<Triple>() {
+			@Override
+			public boolean accept(Triple triple) {
+				check();
+				return true;
+			}
+		};
+
+		TimedGraph(Graph graph, long deadline) {
+			super(graph);
+			this.deadline = deadline;
+		}
+
+		@Override
+		public ExtendedIterator<Triple> find(TripleMatch match) {
+			check();
+			return super.find(match).filterKeep(check);
+		}
+
+		@Override
+		public ExtendedIterator<Triple> find(Node s, Node p, Node o) {
+			check();
+			return super.find(s, p, o).filterKeep(check);
+		}
+
+		private void check() {
+			if (System.currentTimeMillis() > deadline)
+				throw new QueryTimeoutException("The query took too long");
+		}
+	}
+
+	/**
+	 * Returns the cached results for the given key, or null.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private synchronized Result get(String key) {
+		return results.get(key);
+	}
+
+	/**
+	 * Caches results, evicting the least recently used ones beyond the size
+	 * of the cache. Results taking up more than a quarter of the cache are
+	 * not kept.
+	 *
+	 * @param key
+	 * @param result
+	 */
+	private synchronized void put(String key, Result result) {
+		long size = weigh(key, result);
+		if (size > maxWeight / 4)
+			return;
+		Result old = results.put(key, result);
+		if (old != null)
+			weight -= weigh(key, old);
+		weight += size;
+		for (Iterator<Map.Entry<String, Result>> it = results.entrySet()
+				.iterator(); weight > maxWeight && it.hasNext();) {
+			Map.Entry<String, Result> eldest = it.next();
+			weight -= weigh(eldest.getKey(), eldest.getValue());
+			it.remove();
+		}
+	}
+
+	private static long weigh(String key, Result result) {
+		return 2 * key.length() + result.body.length;
+	}
+}
@@ -0,0 +1,238 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+
+package de.lodum.rdfpad;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lodum.rdfpad.util.Gzip;
+
+/**
+ * Serves the static files the HTML view refers to, such as the style sheet
+ * and the logo, at <code>/files</code>. The files are read into memory when
+ * the server starts, each with a strong ETag derived from its contents and,
+ * if that pays off, a gzip compressed variant; a file <code>name.gz</code>
+ * next to <code>name</code> is taken as its compressed variant instead.
+ * Responses may be cached by clients for a long time. All other requests
+ * are left to the next handler.
+ */
+public class StaticFiles extends AbstractHandler {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StaticFiles.class);
+
+	/**
+	 * The path the files are served at.
+	 */
+	public static final String PATH = "/files";
+
+	/**
+	 * Default directory the files are read from. Can be set via the system
+	 * property <code>rdfpad.files.dir</code>.
+	 */
+	public static final String DEFAULT_DIR = "files";
+
+	/**
+	 * Default time clients may cache the files for, in seconds. Can be set
+	 * via the system property <code>rdfpad.files.maxage</code>.
+	 */
+	public static final long DEFAULT_MAX_AGE = 365 * 24 * 3600;
+
+	private static final String GZ = ".gz";
+
+	/**
+	 * A file and its compressed variant, if any, ready to be sent.
+	 */
+	private static class Asset {
+		final String contentType;
+		final byte[] content;
+		final String etag;
+		final byte[] gzipped;
+		final String gzipETag;
+
+		Asset(String contentType, byte[] content, byte[] gzipped) {
+			this.contentType = contentType;
+			this.content = content;
+			String hash = hash(content);
+			this.etag = "\"" + hash + "\"";
+			this.gzipped = gzipped;
+			this.gzipETag = "\"" + hash + "-gzip\"";
+		}
+	}
+
+	private final File dir;
+	private final String cacheControl;
+	private final MimeTypes mimeTypes = new MimeTypes();
+
+	// replaced as a whole on start, read without locking:
+	private volatile Map<String, Asset> assets = new HashMap<String, Asset>();
+
+	/**
+	 * Creates a handler for the files in the directory given by the system
+	 * property <code>rdfpad.files.dir</code>, to be cached for the time
+	 * given by <code>rdfpad.files.maxage</code>.
+	 */
+	public StaticFiles() {
+		this(new File(System.getProperty("rdfpad.files.dir", DEFAULT_DIR)),
+				Long.getLong("rdfpad.files.maxage", DEFAULT_MAX_AGE));
+	}
+
+	/**
+	 * Creates a handler for the files in the given directory.
+	 *
+	 * @param dir
+	 * @param maxAge
+	 *            time clients may cache the files for, in seconds
+	 */
+	public StaticFiles(File dir, long maxAge) {
+		this.dir = dir;
+		this.cacheControl = "public, max-age=" + maxAge;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		Map<String, Asset> loaded = new HashMap<String, Asset>();
+		if (dir.isDirectory())
+			load(dir, PATH + "/", loaded);
+		else
+			logger.warn("No static files in " + dir.getAbsolutePath());
+		assets = loaded;
+		super.doStart();
+	}
+
+	/**
+	 * Reads the files in a directory and its subdirectories.
+	 */
+	private void load(File dir, String path, Map<String, Asset> loaded)
+			throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isDirectory()) {
+				load(file, path + name + "/", loaded);
+				continue;
+			}
+			if (name.startsWith(".") || name.endsWith(GZ) || !file.isFile())
+				continue;
+			byte[] content = read(file);
+			byte[] gzipped = null;
+			File precompressed = new File(dir, name + GZ);
+			if (precompressed.isFile())
+				gzipped = read(precompressed);
+			else if (Gzip.isWorthIt(content.length)) {
+				gzipped = Gzip.compress(content);
+				// images and the like do not get any smaller:
+				if (gzipped.length >= content.length * 9 / 10)
+					gzipped = null;
+			}
+			Buffer mime = mimeTypes.getMimeByExtension(name);
+			loaded.put(path + name, new Asset(mime == null ? null : mime
+					.toString(), content, gzipped));
+		}
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		if (!request.getRequestURI().startsWith(PATH))
+			return;
+		baseRequest.setHandled(true);
+		String method = request.getMethod();
+		boolean head = "HEAD".equals(method);
+		if (!head && !"GET".equals(method)) {
+			response.setHeader("Allow", "GET, HEAD");
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		Asset asset = assets.get(request.getRequestURI());
+		if (asset == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		boolean gzip = asset.gzipped != null && Gzip.isAccepted(request);
+		if (asset.gzipped != null)
+			response.setHeader("Vary", "Accept-Encoding");
+		String etag = gzip ? asset.gzipETag : asset.etag;
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", cacheControl);
+		if (RDFpad.matches(request.getHeader("If-None-Match"), etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		byte[] body = gzip ? asset.gzipped : asset.content;
+		if (asset.contentType != null)
+			response.setContentType(asset.contentType);
+		if (gzip)
+			response.setHeader("Content-Encoding", "gzip");
+		response.setContentLength(body.length);
+		response.setStatus(HttpServletResponse.SC_OK);
+		if (!head)
+			response.getOutputStream().write(body);
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] content = new byte[(int) file.length()];
+			int read = 0;
+			while (read < content.length) {
+				int n = in.read(content, read, content.length - read);
+				if (n < 0)
+					throw new IOException("could not read " + file);
+				read += n;
+			}
+			return content;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder hex = new StringBuilder(2 * digest.length);
+			for (byte b : digest)
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+						Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
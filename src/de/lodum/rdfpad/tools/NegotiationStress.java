@@ -0,0 +1,140 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.tools;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import de.lodum.rdfpad.RDFpad;
+
+/**
+ * Stress test for content negotiation under concurrency: starts RDFpad with a
+ * large thread pool and lets many client threads request pad URIs with
+ * different Accept headers at the same time. Every 303 redirect has to point
+ * to the pad that was asked for, with the file extension matching that
+ * request's own Accept header. Negotiation does not touch the etherpads, so
+ * no network access is needed.
+ * <p>
+ * Usage: <code>java de.lodum.rdfpad.tools.NegotiationStress [threads] [requests per thread]</code>
+ */
+public class NegotiationStress {
+
+	// Accept headers and the extensions they should be redirected to:
+	private static final String[][] CASES = {
+			{ "text/turtle", ".ttl" },
+			{ "application/rdf+xml", ".rdf" },
+			{ "text/plain", ".nt" },
+			{ "text/n3", ".n3" },
+			{ "text/html", ".html" },
+			{ "text/n3;q=0.5,application/rdf+xml;q=0.9", ".rdf" },
+			{ "text/turtle;q=0.8,text/html;q=0.2", ".ttl" },
+			{ "application/rdf+xml, text/turtle", ".rdf" },
+			{ "text/*;q=0.3, text/turtle", ".ttl" },
+			{ "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+					".html" } };
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1])
+				: 200;
+
+		Server server = new Server();
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setPort(0);
+		server.addConnector(connector);
+		QueuedThreadPool pool = new QueuedThreadPool();
+		pool.setMaxThreads(Math.max(threads * 2, 16));
+		server.setThreadPool(pool);
+		server.setHandler(new RDFpad());
+		server.start();
+
+		final String base = "http://localhost:" + connector.getLocalPort();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicInteger wrong = new AtomicInteger();
+		final List<String> samples = new ArrayList<String>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < requests; i++) {
+							String[] c = CASES[(thread + i) % CASES.length];
+							String path = "/example.org/p/pad-" + thread + "-"
+									+ i;
+							String location = redirect(base + path, c[0]);
+							if (location == null
+									|| !location.endsWith(path + c[1])) {
+								wrong.incrementAndGet();
+								synchronized (samples) {
+									if (samples.size() < 10)
+										samples.add("Accept: " + c[0]
+												+ " for " + path + " -> "
+												+ location);
+								}
+							}
+							done.incrementAndGet();
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						finished.countDown();
+					}
+				}
+			}.start();
+		}
+
+		long time = System.currentTimeMillis();
+		start.countDown();
+		finished.await();
+		time = System.currentTimeMillis() - time;
+		server.stop();
+
+		System.out.println(done.get() + " requests from " + threads
+				+ " threads in " + time + " ms, " + wrong.get()
+				+ " negotiated wrongly");
+		for (String sample : samples)
+			System.out.println("  " + sample);
+		System.exit(wrong.get() == 0 && done.get() == threads * requests ? 0
+				: 1);
+	}
+
+	private static String redirect(String url, String accept) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url)
+				.openConnection();
+		con.setInstanceFollowRedirects(false);
+		con.setRequestProperty("Accept", accept);
+		try {
+			if (con.getResponseCode() != HttpURLConnection.HTTP_SEE_OTHER)
+				return null;
+			return con.getHeaderField("Location");
+		} finally {
+			con.disconnect();
+		}
+	}
+}
@@ -16,97 +16,242 @@
 package de.lodum.rdfpad.util;
 
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 
 public class AcceptHeader {
 
-	private String preferredMIMEType;
+	/**
+	 * The MIME types RDFpad can serve, in the order they are preferred if the
+	 * client likes several of them equally well.
+	 */
+	private static final String[] TYPES = { "text/html", "text/turtle",
+			"application/rdf+xml", "text/plain", "text/n3" };
+
+	// how specifically a media range matches one of the TYPES:
+	private static final int NO_MATCH = 0;
+	private static final int ANY = 1; // */*
+	private static final int SUBTYPES = 2; // e.g. text/*
+	private static final int EXACT = 3;
+
+	// clients send only a handful of distinct Accept headers, so the results
+	// are memoized; once the map is full, new headers are parsed every time:
+	private static final int MAX_MEMOIZED = 256;
+	private static final ConcurrentMap<String, String> negotiated = new ConcurrentHashMap<String, String>();
+
+	private final String preferredMIMEType;
 
 	/**
 	 * Creates an AcceptHeader object from an HttpServletRequest to enable
-	 * queries for the client's preferred content type. Takes "q" values in the
-	 * accept headers into account and specifies the client's preferred content
-	 * type as "text/html", if no accept headers are sent. See <a
-	 * href="http://www.w3.org/Protocols/HTTP/HTRQ_Headers.html#z3"
-	 * >http://www.w3.org/Protocols/HTTP/HTRQ_Headers.html#z3</a> for examples.
-	 * 
+	 * queries for the client's preferred content type. Takes "q" values,
+	 * wildcards and the specificity of media ranges in the accept headers into
+	 * account as described in <a
+	 * href="http://tools.ietf.org/html/rfc7231#section-5.3.2">RFC 7231</a>
+	 * and specifies the client's preferred content type as "text/html", if no
+	 * accept headers are sent or none of them matches a type RDFpad can serve.
+	 * A type given in the "accept" parameter of the request takes precedence
+	 * over the headers.
+	 *
 	 * @param request
 	 */
 	public AcceptHeader(HttpServletRequest request) {
 
-		// first, try different capitalizations of "accept":
+		String parameter = request.getParameter("accept");
+		if (parameter != null && parameter.length() > 0) {
+			preferredMIMEType = parameter;
+			return;
+		}
+
+		// header names are case-insensitive in Jetty, so one lookup will do;
+		// multiple Accept headers are rare, but equivalent to a single one
+		// listing all their values:
 		Enumeration<String> accepts = request.getHeaders("Accept");
+		String header = accepts.hasMoreElements() ? accepts.nextElement()
+				: null;
+		while (accepts.hasMoreElements())
+			header = header + "," + accepts.nextElement();
 
-		if (!accepts.hasMoreElements())
-			accepts = request.getHeaders("accept");
+		preferredMIMEType = header == null ? "text/html" : negotiate(header);
+	}
 
-		if (!accepts.hasMoreElements())
-			accepts = request.getHeaders("ACCEPT");
+	/**
+	 * Returns the MIME type preferred by the client.
+	 *
+	 * @return
+	 */
+	public String getPrefMIME() {
+		return preferredMIMEType;
+	}
 
-		// seems like no header has been sent; we'll assume text/html
-		if (!accepts.hasMoreElements() || request.getHeader("accept")!=null) {
-			//check if its given 
-			preferredMIMEType =request.getParameter("accept");
-			if(preferredMIMEType==null || preferredMIMEType==""){
-				preferredMIMEType = "text/html";
-			}
-		} else {
-			// so we got our headers; iterate and find the most preferred one:
-
-			String currentlyPreferred = "";
-			double largestQ = 0.0;
-
-			while (accepts.hasMoreElements()) {
-				String accept = accepts.nextElement();
-				// split this accept header into the different elements:
-				String[] entries = accept.split(",");
-				for (int i = 0; i < entries.length; i++) {
-					String entry = entries[i];
-					String[] entryParts = entry.split(";");
-					String thisType = entryParts[0];
-					double thisQ = 0.0;
-					// if this is the first listed MIME type, make it the
-					// preferred one for now:
-
-					for (int j = 1; j < entryParts.length; j++) {
-						String thisPart = entryParts[j];
-						if (thisPart.startsWith("q=")) {
-							thisQ = new Double(thisPart.split("=")[1])
-							.doubleValue();
-							j = entryParts.length; // stop here
-						}
-					}
+	/**
+	 * Returns the type RDFpad should serve for the given Accept header,
+	 * parsing the header only the first time it is seen.
+	 *
+	 * @param header
+	 * @return
+	 */
+	public static String negotiate(String header) {
+		String type = negotiated.get(header);
+		if (type == null) {
+			type = parse(header);
+			if (negotiated.size() < MAX_MEMOIZED)
+				negotiated.put(header, type);
+		}
+		return type;
+	}
+
+	/**
+	 * Returns which of the given types the client prefers according to the
+	 * given Accept header, without memoization, in the same way as
+	 * {@link #parse(String)}; ties go to the type listed first.
+	 *
+	 * @param header
+	 * @param types
+	 *            MIME types the response could be sent as
+	 * @return the preferred type, or null if the header accepts none of them
+	 */
+	public static String negotiate(String header, String[] types) {
+		int best = best(header, types);
+		return best < 0 ? null : types[best];
+	}
 
-					// if q is still 0.0 (i.e., it has not been set in the
-					// entry), set it to 1.0:
-					if (thisQ == 0.0)
-						thisQ = 1.0;
+	/**
+	 * Returns the type RDFpad should serve for the given Accept header,
+	 * without memoization. The header is scanned once, without splitting it
+	 * into substrings: for every type RDFpad can serve, the q value of the
+	 * most specific media range matching it counts. Among the types with the
+	 * highest q value, one that is named explicitly wins over one that is
+	 * only matched by a wildcard, then the one listed first by the client,
+	 * then the one listed first in {@link #TYPES}.
+	 *
+	 * @param header
+	 * @return
+	 */
+	public static String parse(String header) {
+		int best = best(header, TYPES);
+		return best < 0 ? "text/html" : TYPES[best];
+	}
 
-					// done disentangling stuff: 
-					if(thisQ > largestQ){
-						currentlyPreferred = thisType;
-						largestQ = thisQ;
-					}
+	/**
+	 * Returns the index of the preferred one of the given types, or -1 if
+	 * the header accepts none of them.
+	 */
+	private static int best(String header, String[] types) {
+		int[] q = new int[types.length];
+		int[] specificity = new int[types.length];
+		int[] position = new int[types.length];
 
+		int length = header.length();
+		int i = 0;
+		int range = 0;
+		while (i < length) {
+			char c = header.charAt(i);
+			if (c == ',' || c == ' ' || c == '\t') {
+				i++;
+				continue;
+			}
 
-				}
+			// the media range itself, e.g. "text/turtle" or "text/*":
+			int start = i;
+			int slash = -1;
+			while (i < length && (c = header.charAt(i)) != ',' && c != ';'
+					&& c != ' ' && c != '\t') {
+				if (c == '/' && slash < 0)
+					slash = i;
+				i++;
+			}
+			int end = i;
 
+			// its parameters, of which only q is of interest; q values are
+			// handled in thousandths:
+			int thisQ = 1000;
+			while (i < length && (c = header.charAt(i)) != ',') {
+				i++;
+				if (c != ';')
+					continue;
+				while (i < length && header.charAt(i) == ' ')
+					i++;
+				if (i + 1 < length && (header.charAt(i) | 0x20) == 'q'
+						&& header.charAt(i + 1) == '=')
+					thisQ = parseQ(header, i + 2, length);
 			}
-			this.preferredMIMEType = currentlyPreferred;
 
+			if (slash > start) {
+				for (int t = 0; t < types.length; t++) {
+					int match = match(header, start, slash, end, types[t]);
+					boolean moreSpecific = match > specificity[t];
+					boolean higherQ = match == specificity[t]
+							&& match != NO_MATCH && thisQ > q[t];
+					if (moreSpecific || higherQ) {
+						specificity[t] = match;
+						q[t] = thisQ;
+						position[t] = range;
+					}
+				}
+			}
+			range++;
 		}
 
+		int best = -1;
+		for (int t = 0; t < types.length; t++) {
+			if (specificity[t] == NO_MATCH || q[t] == 0)
+				continue;
+			if (best < 0 || q[t] > q[best])
+				best = t;
+			else if (q[t] == q[best]) {
+				if (specificity[t] > specificity[best]
+						|| (specificity[t] == specificity[best] && position[t] < position[best]))
+					best = t;
+			}
+		}
+		return best;
+	}
 
+	/**
+	 * Checks how specifically the media range between start and end matches
+	 * the given type.
+	 */
+	private static int match(String header, int start, int slash, int end,
+			String type) {
+		if (end - start == 3 && header.startsWith("*/*", start))
+			return ANY;
+		int typeLength = slash - start;
+		if (type.length() <= typeLength || type.charAt(typeLength) != '/'
+				|| !type.regionMatches(true, 0, header, start, typeLength))
+			return NO_MATCH;
+		if (end - slash == 2 && header.charAt(end - 1) == '*')
+			return SUBTYPES;
+		if (type.length() == end - start
+				&& type.regionMatches(true, typeLength, header, slash, end
+						- slash))
+			return EXACT;
+		return NO_MATCH;
 	}
 
 	/**
-	 * Returns the MIME type preferred by the client.
-	 * 
-	 * @return
+	 * Parses a q value like "1", "0.8" or "0.125" into thousandths. Malformed
+	 * values count as 1.
 	 */
-	public String getPrefMIME() {
-		return preferredMIMEType;
+	private static int parseQ(String header, int i, int length) {
+		if (i >= length)
+			return 1000;
+		char c = header.charAt(i);
+		if (c != '0' && c != '1')
+			return 1000;
+		int value = (c - '0') * 1000;
+		i++;
+		if (i < length && header.charAt(i) == '.') {
+			i++;
+			for (int factor = 100; factor > 0 && i < length; factor /= 10, i++) {
+				c = header.charAt(i);
+				if (c < '0' || c > '9')
+					break;
+				value += (c - '0') * factor;
+			}
+		}
+		return Math.min(value, 1000);
 	}
 
 }
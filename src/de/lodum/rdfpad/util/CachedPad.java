@@ -0,0 +1,441 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * A pad as held by the {@link ModelCache}: the downloaded contents together
+ * with the export URL they were read from, their hash, their syntax as told
+ * by the {@link TypeDetector}, the time they were loaded, the serializations
+ * generated from them so far and an estimate of the heap all of this
+ * occupies.
+ * <p>
+ * The Jena model of the pad, its subjects in sorted order for paging through
+ * the HTML view and its namespace prefixes are only built once a request
+ * needs them; the Turtle and N-Triples serializations of Turtle and
+ * N-Triples pads are written straight from the contents by the
+ * {@link TurtleStreamer}. When a Turtle pad whose model has
+ * been built is downloaded with new contents, the model of the new version
+ * is built from the previous one and only the statements that have changed
+ * are parsed, see {@link PadModel}.
+ */
+public class CachedPad {
+
+	/**
+	 * Appended to the name of a serialization for its gzip compressed
+	 * variant, e.g. "N-TRIPLE+gzip".
+	 */
+	public static final String GZIP = "+gzip";
+
+	private static final Histogram PARSE_TIME = Metrics.histogram(
+			"rdfpad_parse_seconds", "Time to build the model of a pad.",
+			"mode", "full");
+	private static final Histogram UPDATE_TIME = Metrics.histogram(
+			"rdfpad_parse_seconds", "Time to build the model of a pad.",
+			"mode", "incremental");
+	private static final Histogram FALLBACK_TIME = Metrics.histogram(
+			"rdfpad_parse_seconds", "Time to build the model of a pad.",
+			"mode", "fallback");
+
+	private final String exportURL;
+	private final byte[] content;
+	private final String contentHash;
+	private final String format;
+	private final long loadedAt;
+	private final Parsed parsed;
+	private final Map<String, byte[]> serializations;
+	private long weight;
+	private volatile boolean revalidationFailed = false;
+	private volatile boolean restored = false;
+
+	/**
+	 * The model built from the contents, shared by renewed copies of a pad.
+	 */
+	private static class Parsed {
+		volatile PadModel model;
+	}
+
+	/**
+	 * Wraps freshly downloaded pad contents; they are not parsed until
+	 * {@link #getModel()} is called.
+	 *
+	 * @param exportURL
+	 *            the URL the contents have been downloaded from
+	 * @param content
+	 *            the contents of the pad
+	 * @param contentHash
+	 *            hash of the contents
+	 */
+	public CachedPad(String exportURL, byte[] content, String contentHash) {
+		this(exportURL, content, contentHash, System.currentTimeMillis());
+	}
+
+	/**
+	 * Wraps pad contents downloaded earlier, e.g. restored from a snapshot,
+	 * so that the pad expires as if it had been cached ever since.
+	 *
+	 * @param exportURL
+	 *            the URL the contents have been downloaded from
+	 * @param content
+	 *            the contents of the pad
+	 * @param contentHash
+	 *            hash of the contents
+	 * @param loadedAt
+	 *            the time the contents have been downloaded, in milliseconds
+	 */
+	public CachedPad(String exportURL, byte[] content, String contentHash,
+			long loadedAt) {
+		this(exportURL, content, contentHash, TypeDetector.detect(content),
+				new Parsed(), new ConcurrentHashMap<String, byte[]>(),
+				content.length, loadedAt);
+	}
+
+	private CachedPad(String exportURL, byte[] content, String contentHash,
+			String format, Parsed parsed, Map<String, byte[]> serializations,
+			long weight, long loadedAt) {
+		this.exportURL = exportURL;
+		this.content = content;
+		this.contentHash = contentHash;
+		this.format = format;
+		this.loadedAt = loadedAt;
+		this.parsed = parsed;
+		this.serializations = serializations;
+		this.weight = weight;
+	}
+
+	/**
+	 * Returns a copy of this pad with a new load time, for when the pad has
+	 * been downloaded again but its contents have not changed. The model, the
+	 * sorted subjects and the serializations are shared with the copy.
+	 *
+	 * @return
+	 */
+	public CachedPad renew() {
+		synchronized (serializations) {
+			return new CachedPad(exportURL, content, contentHash, format,
+					parsed, serializations, weight, System.currentTimeMillis());
+		}
+	}
+
+	public String getExportURL() {
+		return exportURL;
+	}
+
+	/**
+	 * Returns the syntax the pad is written in.
+	 *
+	 * @return one of the formats of the {@link TypeDetector}
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Returns true if the pad is read by the Turtle parser, so that its
+	 * Turtle and N-Triples serializations can be streamed from the contents.
+	 *
+	 * @return
+	 */
+	public boolean isTurtle() {
+		return TypeDetector.isTurtle(format);
+	}
+
+	/**
+	 * Returns the contents of the pad as downloaded.
+	 *
+	 * @return
+	 */
+	public InputStream getContent() {
+		return new ByteArrayInputStream(content);
+	}
+
+	/**
+	 * Returns the contents of the pad as downloaded, without copying them;
+	 * the array must not be modified.
+	 *
+	 * @return
+	 */
+	byte[] getContentBytes() {
+		return content;
+	}
+
+	/**
+	 * Returns the size of the contents of the pad, in bytes.
+	 *
+	 * @return
+	 */
+	public int getContentLength() {
+		return content.length;
+	}
+
+	/**
+	 * Returns the model of the pad, parsing the contents the first time it is
+	 * asked for. Use {@link ModelCache#getModel(CachedPad)} to have the model
+	 * counted in the weight of the cache.
+	 *
+	 * @return
+	 * @throws com.hp.hpl.jena.shared.JenaException
+	 *             if the contents are not valid in their syntax
+	 */
+	public Model getModel() {
+		return getPadModel().model;
+	}
+
+	/**
+	 * Returns true if the model of this pad has been built already.
+	 *
+	 * @return
+	 */
+	public boolean isParsed() {
+		return parsed.model != null;
+	}
+
+	/**
+	 * Returns the number of distinct subjects of the model.
+	 *
+	 * @return
+	 */
+	public int getSubjectCount() {
+		return getPadModel().subjects.length;
+	}
+
+	/**
+	 * Returns the subject at the given position in sorted order, URIs first.
+	 *
+	 * @param index
+	 *            between 0 and {@link #getSubjectCount()} - 1
+	 * @return
+	 */
+	public Resource getSubject(int index) {
+		return getPadModel().subjects[index];
+	}
+
+	/**
+	 * Returns the namespace prefixes of the model by namespace URI, so that
+	 * the prefix of a URI can be looked up without asking the model. If a
+	 * namespace has several prefixes, the alphabetically first one is used.
+	 *
+	 * @return
+	 */
+	public Map<String, String> getPrefixes() {
+		return getPadModel().prefixes;
+	}
+
+	/**
+	 * Parses the contents into a model unless that has been done already and
+	 * returns the estimated heap taken up by the model, or 0 if it had been
+	 * built before. The weight of this pad is left alone, it is up to the
+	 * cache to add the result via {@link #addWeight(long)}.
+	 *
+	 * @return
+	 */
+	long parse() {
+		if (parsed.model != null)
+			return 0;
+		synchronized (parsed) {
+			if (parsed.model != null)
+				return 0;
+			parsed.model = parseModel();
+			return parsed.model.weight;
+		}
+	}
+
+	private PadModel getPadModel() {
+		PadModel model = parsed.model;
+		if (model != null)
+			return model;
+		synchronized (parsed) {
+			if (parsed.model == null)
+				parsed.model = parseModel();
+			return parsed.model;
+		}
+	}
+
+	private PadModel parseModel() {
+		long start = System.nanoTime();
+		PadModel model = PadModel.parse(exportURL, content, format);
+		PARSE_TIME.recordSince(start);
+		return model;
+	}
+
+	/**
+	 * Returns a pad with new contents whose model is built from this pad's
+	 * model by parsing only the statements that are new, or null if this
+	 * pad has not been parsed yet or the new contents have to be parsed in
+	 * full, which is always the case unless both are Turtle or N-Triples.
+	 * The weight of the returned pad includes its model; this pad keeps its
+	 * own.
+	 *
+	 * @param content
+	 *            the new contents
+	 * @param contentHash
+	 *            hash of the new contents
+	 * @return
+	 */
+	CachedPad update(byte[] content, String contentHash) {
+		String format = TypeDetector.detect(content);
+		if (!isTurtle() || !TypeDetector.isTurtle(format))
+			return null;
+		// models are not changed once built, so requests may go on using
+		// this one meanwhile:
+		PadModel model = parsed.model;
+		if (model == null)
+			return null;
+		long start = System.nanoTime();
+		PadModel updated = model.update(exportURL, content);
+		if (updated == null) {
+			// time spent before giving up on the update:
+			FALLBACK_TIME.recordSince(start);
+			return null;
+		}
+		UPDATE_TIME.recordSince(start);
+		Parsed built = new Parsed();
+		built.model = updated;
+		return new CachedPad(exportURL, content, contentHash, format, built,
+				new ConcurrentHashMap<String, byte[]>(), content.length
+						+ updated.weight, System.currentTimeMillis());
+	}
+
+	/**
+	 * Adds to the estimated heap size of this pad.
+	 *
+	 * @param added
+	 *            in bytes
+	 */
+	void addWeight(long added) {
+		synchronized (serializations) {
+			weight += added;
+		}
+	}
+
+	/**
+	 * Returns the hex encoded SHA-1 hash of the pad contents.
+	 *
+	 * @return
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * Returns the strong entity tag for the given serialization of this pad.
+	 *
+	 * @param lang
+	 *            the Jena name of the serialization, e.g. "TURTLE", followed
+	 *            by {@link #GZIP} for the compressed variant
+	 * @return
+	 */
+	public String getETag(String lang) {
+		return "\"" + contentHash + "-" + lang + "\"";
+	}
+
+	/**
+	 * Returns the UTF-8 bytes of the given serialization, or null if it has
+	 * not been generated yet.
+	 *
+	 * @param lang
+	 *            the Jena name of the serialization, e.g. "TURTLE"
+	 * @return
+	 */
+	public byte[] getSerialization(String lang) {
+		return serializations.get(lang);
+	}
+
+	/**
+	 * Returns the names of the serializations generated so far, e.g.
+	 * "TURTLE" or "N-TRIPLE+gzip".
+	 *
+	 * @return
+	 */
+	public Set<String> getSerializationNames() {
+		return new HashSet<String>(serializations.keySet());
+	}
+
+	/**
+	 * Stores a serialization of this pad. Returns its size, which is 0 if
+	 * this serialization is already present; like for {@link #parse()}, it
+	 * is up to the cache to add the result to the weight.
+	 *
+	 * @param lang
+	 * @param bytes
+	 * @return
+	 */
+	long addSerialization(String lang, byte[] bytes) {
+		synchronized (serializations) {
+			if (serializations.containsKey(lang))
+				return 0;
+			serializations.put(lang, bytes);
+			return bytes.length;
+		}
+	}
+
+	/**
+	 * Returns the time this pad has been loaded, in milliseconds.
+	 *
+	 * @return
+	 */
+	public long getLoadedAt() {
+		return loadedAt;
+	}
+
+	/**
+	 * Returns true if this pad has expired and downloading it again has
+	 * failed, so that it is served stale for that reason.
+	 *
+	 * @return
+	 */
+	public boolean isRevalidationFailed() {
+		return revalidationFailed;
+	}
+
+	void setRevalidationFailed() {
+		revalidationFailed = true;
+	}
+
+	/**
+	 * Returns true if this pad has been restored from a snapshot rather than
+	 * downloaded since the server started.
+	 *
+	 * @return
+	 */
+	public boolean isRestored() {
+		return restored;
+	}
+
+	void setRestored() {
+		restored = true;
+	}
+
+	/**
+	 * Returns the estimated heap size of this pad, in bytes.
+	 *
+	 * @return
+	 */
+	public long getWeight() {
+		synchronized (serializations) {
+			return weight;
+		}
+	}
+}
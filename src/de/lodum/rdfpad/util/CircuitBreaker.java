@@ -0,0 +1,101 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+/**
+ * Tracks whether an etherpad host is answering. After a number of failures
+ * in a row the circuit opens, and no requests are sent to the host for a
+ * cool-off period; after that, a single trial request is let through, which
+ * closes the circuit again if it succeeds and reopens it if it fails.
+ * <p>
+ * Only the host's answering counts: a response with a status below 500 is a
+ * success even if it is not the pad, so that requests for missing pads do
+ * not cut off a healthy host.
+ */
+class CircuitBreaker {
+
+	private final int threshold;
+	private final long coolOff;
+
+	private int failures = 0;
+	private long openedAt = -1;
+	private boolean trial = false;
+
+	/**
+	 * @param threshold
+	 *            failures in a row after which the circuit opens
+	 * @param coolOff
+	 *            time the circuit stays open, in milliseconds
+	 */
+	CircuitBreaker(int threshold, long coolOff) {
+		this.threshold = Math.max(1, threshold);
+		this.coolOff = coolOff;
+	}
+
+	/**
+	 * Returns true if a request may be sent to the host. Once the cool-off
+	 * period is over, this is true for the first caller only, whose request
+	 * is the trial.
+	 *
+	 * @return
+	 */
+	synchronized boolean allow() {
+		if (openedAt < 0)
+			return true;
+		if (trial || System.currentTimeMillis() - openedAt < coolOff)
+			return false;
+		trial = true;
+		return true;
+	}
+
+	/**
+	 * Records that the host has answered.
+	 */
+	synchronized void succeeded() {
+		failures = 0;
+		openedAt = -1;
+		trial = false;
+	}
+
+	/**
+	 * Records that the host has not answered, or with a server error.
+	 */
+	synchronized void failed() {
+		failures++;
+		if (trial || failures >= threshold)
+			openedAt = System.currentTimeMillis();
+		trial = false;
+	}
+
+	/**
+	 * Returns true if no requests are sent to the host at the moment.
+	 *
+	 * @return
+	 */
+	synchronized boolean isOpen() {
+		return openedAt >= 0;
+	}
+
+	/**
+	 * Returns the time until the next trial request, in milliseconds.
+	 *
+	 * @return
+	 */
+	synchronized long getRemaining() {
+		return openedAt < 0 ? 0 : Math.max(0, openedAt + coolOff
+				- System.currentTimeMillis());
+	}
+}
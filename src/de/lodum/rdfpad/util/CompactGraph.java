@@ -0,0 +1,323 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * A read-only graph holding its triples as ids from a {@link TermDictionary}
+ * in three sorted int arrays, in subject-predicate-object,
+ * predicate-object-subject and object-subject-predicate order, so that any
+ * pattern is answered by a binary search in one of them. Compared with a
+ * Jena memory graph, which keeps an object per triple in three hash
+ * indexes, this takes a fraction of the heap per triple; the terms
+ * themselves are shared with all other graphs using the same dictionary.
+ * <p>
+ * Changes are made by building a new graph via
+ * {@link #update(Collection, Collection)}, so that requests still holding
+ * this one are not affected.
+ */
+public class CompactGraph extends GraphBase {
+
+	// three ids per triple in each of the three orders:
+	private static final long TRIPLE_WEIGHT = 3 * 3 * 4;
+
+	// the position of subject, predicate and object in each order:
+	private static final int[] SPO = { 0, 1, 2 };
+	private static final int[] POS = { 2, 0, 1 };
+	private static final int[] OSP = { 1, 2, 0 };
+
+	private final TermDictionary dictionary;
+	private final int size;
+	private final int[] spo;
+	private final int[] pos;
+	private final int[] osp;
+	private final long weight;
+
+	private CompactGraph(TermDictionary dictionary, int[] triples, int size) {
+		this.dictionary = dictionary;
+		this.size = size;
+		this.spo = sort(triples, size, SPO);
+		this.pos = sort(triples, size, POS);
+		this.osp = sort(triples, size, OSP);
+		this.weight = weigh();
+	}
+
+	/**
+	 * Copies the triples and prefixes of a graph into a compact graph.
+	 *
+	 * @param dictionary
+	 * @param graph
+	 * @return
+	 */
+	public static CompactGraph create(TermDictionary dictionary, Graph graph) {
+		int[] triples = new int[3 * graph.size()];
+		int size = 0;
+		for (Iterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY); it
+				.hasNext();) {
+			Triple triple = it.next();
+			if (3 * size == triples.length)
+				triples = grow(triples);
+			encode(dictionary, triple, triples, size++);
+		}
+		CompactGraph compact = new CompactGraph(dictionary, triples, size);
+		compact.getPrefixMapping().setNsPrefixes(graph.getPrefixMapping());
+		return compact;
+	}
+
+	/**
+	 * Returns a new graph with the triples of this graph, the given ones
+	 * removed and added, and the same prefixes.
+	 *
+	 * @param removed
+	 *            triples to remove, all of them in this graph
+	 * @param added
+	 *            triples to add, none of them in this graph after the removal
+	 * @return
+	 */
+	public CompactGraph update(Collection<Triple> removed,
+			Collection<Triple> added) {
+		BitSet gone = new BitSet(size);
+		for (Triple triple : removed) {
+			int i = indexOf(triple);
+			if (i >= 0)
+				gone.set(i);
+		}
+		int[] triples = new int[3 * (size - gone.cardinality() + added.size())];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (gone.get(i))
+				continue;
+			System.arraycopy(spo, 3 * i, triples, 3 * n++, 3);
+		}
+		for (Triple triple : added)
+			encode(dictionary, triple, triples, n++);
+		CompactGraph updated = new CompactGraph(dictionary, triples, n);
+		updated.getPrefixMapping().setNsPrefixes(getPrefixMapping());
+		return updated;
+	}
+
+	/**
+	 * Returns the dictionary the terms of this graph are in.
+	 *
+	 * @return
+	 */
+	public TermDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Returns the estimated heap taken by this graph: its three indexes and
+	 * the terms it uses, even though these may be shared with other graphs.
+	 *
+	 * @return
+	 */
+	public long getWeight() {
+		return weight;
+	}
+
+	@Override
+	protected int graphBaseSize() {
+		return size;
+	}
+
+	@Override
+	protected boolean graphBaseContains(Triple triple) {
+		if (!triple.isConcrete())
+			return super.graphBaseContains(triple);
+		return indexOf(triple) >= 0;
+	}
+
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(TripleMatch match) {
+		Node s = concrete(match.getMatchSubject());
+		Node p = concrete(match.getMatchPredicate());
+		Node o = concrete(match.getMatchObject());
+		int si = s == null ? -1 : dictionary.lookup(s);
+		int pi = p == null ? -1 : dictionary.lookup(p);
+		int oi = o == null ? -1 : dictionary.lookup(o);
+		if ((s != null && si < 0) || (p != null && pi < 0)
+				|| (o != null && oi < 0))
+			return NiceIterator.emptyIterator();
+
+		// the order whose leading columns are the bound terms:
+		if (s != null && p == null && o != null)
+			return find(osp, OSP, oi, si, -1);
+		if (s != null || (p == null && o == null))
+			return find(spo, SPO, si, pi, oi);
+		if (p != null)
+			return find(pos, POS, pi, oi, -1);
+		return find(osp, OSP, oi, -1, -1);
+	}
+
+	private static Node concrete(Node node) {
+		return node != null && node.isConcrete() ? node : null;
+	}
+
+	/**
+	 * Returns the triples of an index whose leading columns are the given
+	 * ids, up to the first that is -1.
+	 */
+	private ExtendedIterator<Triple> find(final int[] index,
+			final int[] order, int first, int second, int third) {
+		int from = 0;
+		int to = size;
+		int[] keys = { first, second, third };
+		for (int column = 0; column < 3 && keys[column] >= 0; column++) {
+			from = lowerBound(index, from, to, column, keys[column]);
+			to = lowerBound(index, from, to, column, keys[column] + 1);
+		}
+		final int start = from;
+		final int end = to;
+		return new NiceIterator<Triple>() {
+			private int next = start;
+
+			@Override
+			public boolean hasNext() {
+				return next < end;
+			}
+
+			@Override
+			public Triple next() {
+				if (next >= end)
+					throw new NoSuchElementException();
+				int i = 3 * next++;
+				return new Triple(dictionary.get(index[i + order[0]]),
+						dictionary.get(index[i + order[1]]), dictionary
+								.get(index[i + order[2]]));
+			}
+		};
+	}
+
+	/**
+	 * Returns the position of a concrete triple in the SPO index, or -1.
+	 */
+	private int indexOf(Triple triple) {
+		int s = dictionary.lookup(triple.getSubject());
+		int p = dictionary.lookup(triple.getPredicate());
+		int o = dictionary.lookup(triple.getObject());
+		if (s < 0 || p < 0 || o < 0)
+			return -1;
+		int from = 0;
+		int to = size;
+		int[] keys = { s, p, o };
+		for (int column = 0; column < 3; column++) {
+			from = lowerBound(spo, from, to, column, keys[column]);
+			to = lowerBound(spo, from, to, column, keys[column] + 1);
+		}
+		return from < to ? from : -1;
+	}
+
+	/**
+	 * Returns the first triple between from and to whose id in the given
+	 * column is at least the given one; the triples must agree on all
+	 * columns before.
+	 */
+	private static int lowerBound(int[] index, int from, int to, int column,
+			int id) {
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (index[3 * middle + column] < id)
+				from = middle + 1;
+			else
+				to = middle;
+		}
+		return from;
+	}
+
+	/**
+	 * Returns the triples rearranged into the given order and sorted.
+	 */
+	private static int[] sort(int[] triples, int size, int[] order) {
+		int[] index = new int[3 * size];
+		for (int i = 0; i < size; i++)
+			for (int column = 0; column < 3; column++)
+				index[3 * i + order[column]] = triples[3 * i + column];
+		int[] rows = new int[size];
+		for (int i = 0; i < size; i++)
+			rows[i] = i;
+		mergeSort(index, rows, new int[size], 0, size);
+		int[] sorted = new int[3 * size];
+		for (int i = 0; i < size; i++)
+			System.arraycopy(index, 3 * rows[i], sorted, 3 * i, 3);
+		return sorted;
+	}
+
+	private static void mergeSort(int[] index, int[] rows, int[] buffer,
+			int from, int to) {
+		if (to - from < 2)
+			return;
+		int middle = (from + to) >>> 1;
+		mergeSort(index, rows, buffer, from, middle);
+		mergeSort(index, rows, buffer, middle, to);
+		if (compare(index, rows[middle - 1], rows[middle]) <= 0)
+			return;
+		System.arraycopy(rows, from, buffer, from, to - from);
+		for (int i = from, j = middle, k = from; k < to; k++) {
+			if (j == to
+					|| (i < middle && compare(index, buffer[i], buffer[j]) <= 0))
+				rows[k] = buffer[i++];
+			else
+				rows[k] = buffer[j++];
+		}
+	}
+
+	private static int compare(int[] index, int a, int b) {
+		for (int column = 0; column < 3; column++) {
+			int x = index[3 * a + column];
+			int y = index[3 * b + column];
+			if (x != y)
+				return x < y ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static void encode(TermDictionary dictionary, Triple triple,
+			int[] triples, int i) {
+		triples[3 * i] = dictionary.intern(triple.getSubject());
+		triples[3 * i + 1] = dictionary.intern(triple.getPredicate());
+		triples[3 * i + 2] = dictionary.intern(triple.getObject());
+	}
+
+	private static int[] grow(int[] triples) {
+		int[] grown = new int[Math.max(3, 2 * triples.length)];
+		System.arraycopy(triples, 0, grown, 0, triples.length);
+		return grown;
+	}
+
+	private long weigh() {
+		BitSet terms = new BitSet();
+		long weight = size * TRIPLE_WEIGHT;
+		for (int i = 0; i < 3 * size; i++) {
+			if (!terms.get(spo[i])) {
+				terms.set(spo[i]);
+				weight += dictionary.weigh(spo[i]);
+			}
+		}
+		return weight;
+	}
+}
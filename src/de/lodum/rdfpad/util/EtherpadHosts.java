@@ -0,0 +1,256 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Remembers which export API each etherpad host speaks, so that the export
+ * URL of a pad can be constructed without probing the host on every request.
+ * Old etherpads export plain text via
+ * <code>/ep/pad/export/&lt;pad&gt;/latest?format=txt</code>, newer ones (and
+ * etherpad lite) via <code>/p/&lt;pad&gt;/export/txt</code>. Entries expire
+ * after a configurable time and can be dropped when a download fails, which
+ * makes the next request probe the host again. Probes go through the
+ * {@link UpstreamClient}, so they share its connections and limits with the
+ * downloads.
+ */
+public class EtherpadHosts {
+
+	/**
+	 * Default time a detected export API is remembered, in seconds. Can be
+	 * set via the system property <code>rdfpad.hosts.ttl</code>.
+	 */
+	public static final long DEFAULT_TTL = 3600;
+
+	/**
+	 * The export APIs known to RDFpad.
+	 */
+	public enum ExportAPI {
+		/** the original etherpad */
+		LEGACY,
+		/** etherpad from version 1.0 on, and etherpad lite */
+		CURRENT;
+
+		/**
+		 * Constructs the plain text export URL for a pad on the given host.
+		 *
+		 * @param padURL
+		 * @param padname
+		 * @return
+		 */
+		public String exportURL(URL padURL, String padname) {
+			String host = padURL.getProtocol() + "://" + hostOf(padURL);
+			if (this == LEGACY)
+				return host + "/ep/pad/export/" + padname + "/latest?format=txt";
+			return host + "/p/" + padname + "/export/txt";
+		}
+	}
+
+	private static class Entry {
+		final ExportAPI api;
+		final long detectedAt = System.currentTimeMillis();
+
+		Entry(ExportAPI api) {
+			this.api = api;
+		}
+	}
+
+	private final UpstreamClient upstream;
+	private final long ttl;
+	private final ConcurrentMap<String, Entry> hosts = new ConcurrentHashMap<String, Entry>();
+
+	// probes in progress, shared by all requests for the same host:
+	private final ConcurrentMap<String, FutureTask<ExportAPI>> probing = new ConcurrentHashMap<String, FutureTask<ExportAPI>>();
+
+	/**
+	 * Creates a host table configured from the system property
+	 * <code>rdfpad.hosts.ttl</code> (seconds).
+	 *
+	 * @param upstream
+	 *            the client to probe the hosts with
+	 */
+	public EtherpadHosts(UpstreamClient upstream) {
+		this(upstream, Long.getLong("rdfpad.hosts.ttl", DEFAULT_TTL) * 1000);
+	}
+
+	/**
+	 * @param upstream
+	 *            the client to probe the hosts with
+	 * @param ttl
+	 *            time a detected export API is remembered, in milliseconds
+	 */
+	public EtherpadHosts(UpstreamClient upstream, long ttl) {
+		this.upstream = upstream;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the export API of the host the given pad lives on, probing the
+	 * host only if it is unknown or its entry has expired. Concurrent requests
+	 * for an unknown host share a single probe.
+	 *
+	 * @param padURL
+	 * @param padname
+	 * @return
+	 */
+	public ExportAPI getExportAPI(final URL padURL, final String padname) {
+		final String host = hostOf(padURL);
+		Entry entry = hosts.get(host);
+		if (entry != null
+				&& System.currentTimeMillis() - entry.detectedAt <= ttl)
+			return entry.api;
+
+		FutureTask<ExportAPI> task = new FutureTask<ExportAPI>(
+				new Callable<ExportAPI>() {
+					public ExportAPI call() {
+						ExportAPI api;
+						try {
+							api = probe(padURL, padname);
+						} catch (HostUnavailableException e) {
+							// busy rather than unknown, ask again next time
+							return ExportAPI.CURRENT;
+						}
+						hosts.put(host, new Entry(api));
+						return api;
+					}
+				});
+		FutureTask<ExportAPI> inFlight = probing.putIfAbsent(host, task);
+		if (inFlight == null) {
+			try {
+				task.run();
+			} finally {
+				probing.remove(host, task);
+			}
+			inFlight = task;
+		}
+
+		try {
+			return inFlight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return ExportAPI.CURRENT;
+		} catch (ExecutionException e) {
+			// the task catches what probe() throws
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns true if the export API of the host the given pad lives on is
+	 * currently known.
+	 *
+	 * @param padURL
+	 * @return
+	 */
+	public boolean isKnown(URL padURL) {
+		Entry entry = hosts.get(hostOf(padURL));
+		return entry != null
+				&& System.currentTimeMillis() - entry.detectedAt <= ttl;
+	}
+
+	/**
+	 * Remembers the export API of a host from an export URL that has worked
+	 * before, e.g. that of a pad restored from a snapshot, unless the host is
+	 * known already.
+	 *
+	 * @param exportURL
+	 */
+	public void remember(String exportURL) {
+		try {
+			URL url = new URL(exportURL);
+			hosts.putIfAbsent(hostOf(url), new Entry(apiOf(url)));
+		} catch (MalformedURLException e) {
+			// not ours
+		}
+	}
+
+	/**
+	 * Remembers the export API of a host from an export URL that has just
+	 * worked, replacing what was known about the host.
+	 *
+	 * @param exportURL
+	 */
+	public void learn(String exportURL) {
+		try {
+			URL url = new URL(exportURL);
+			hosts.put(hostOf(url), new Entry(apiOf(url)));
+		} catch (MalformedURLException e) {
+			// not ours
+		}
+	}
+
+	/**
+	 * Returns the export API the given export URL belongs to.
+	 *
+	 * @param exportURL
+	 * @return
+	 */
+	public static ExportAPI apiOf(URL exportURL) {
+		return exportURL.getPath().startsWith("/ep/pad/export/") ? ExportAPI.LEGACY
+				: ExportAPI.CURRENT;
+	}
+
+	/**
+	 * Forgets the export API of the host the given pad lives on, e.g. after
+	 * a failed download.
+	 *
+	 * @param padURL
+	 */
+	public void forget(URL padURL) {
+		hosts.remove(hostOf(padURL));
+	}
+
+	/**
+	 * Returns the host of a URL together with its port, if there is one, as
+	 * an etherpad need not listen on the default port.
+	 */
+	private static String hostOf(URL url) {
+		return url.getPort() == -1 ? url.getHost() : url.getHost() + ":"
+				+ url.getPort();
+	}
+
+	/**
+	 * Finds out which export API a host speaks by asking for the legacy
+	 * export of a pad: old etherpads answer with a content length, newer ones
+	 * do not.
+	 *
+	 * @param padURL
+	 * @param padname
+	 * @return
+	 * @throws HostUnavailableException
+	 *             if the host has too many downloads in progress to be probed
+	 */
+	private ExportAPI probe(URL padURL, String padname)
+			throws HostUnavailableException {
+		try {
+			long length = upstream.getContentLength(ExportAPI.LEGACY.exportURL(
+					padURL, padname));
+			return length == -1 ? ExportAPI.CURRENT : ExportAPI.LEGACY;
+		} catch (HostUnavailableException e) {
+			throw e;
+		} catch (IOException e) {
+			return ExportAPI.CURRENT;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Gzip content encoding for the responses of RDFpad: negotiation via the
+ * Accept-Encoding header and compression of whole byte arrays or streams.
+ */
+public class Gzip {
+
+	/**
+	 * Default size below which responses are not compressed, in bytes. Can be
+	 * set via the system property <code>rdfpad.gzip.threshold</code>.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private static final int THRESHOLD = Integer.getInteger(
+			"rdfpad.gzip.threshold", DEFAULT_THRESHOLD);
+
+	/**
+	 * Checks whether the client accepts gzip, i.e. whether its
+	 * Accept-Encoding header lists gzip (or x-gzip, or *) with a non-zero
+	 * quality.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public static boolean isAccepted(HttpServletRequest request) {
+		String header = request.getHeader("Accept-Encoding");
+		if (header == null)
+			return false;
+
+		Boolean gzip = null, any = null;
+		for (String coding : header.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			boolean accepted = true;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=") || param.startsWith("Q="))
+					accepted = !isZero(param.substring(2).trim());
+			}
+			if (name.equals("gzip") || name.equals("x-gzip"))
+				gzip = accepted;
+			else if (name.equals("*"))
+				any = accepted;
+		}
+		if (gzip != null)
+			return gzip;
+		return any != null && any;
+	}
+
+	/**
+	 * Checks whether a response of the given size is worth compressing.
+	 *
+	 * @param length
+	 *            in bytes
+	 * @return
+	 */
+	public static boolean isWorthIt(long length) {
+		return length >= THRESHOLD;
+	}
+
+	/**
+	 * Compresses a whole response body.
+	 *
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] compress(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				bytes.length / 4 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(out, 8192);
+		gzip.write(bytes);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Sets the Content-Encoding of the response to gzip and returns a stream
+	 * that compresses into the response output stream. Flushing it sends
+	 * everything written so far to the client; when done, call
+	 * {@link GZIPOutputStream#finish()}.
+	 *
+	 * @param response
+	 * @return
+	 * @throws IOException
+	 */
+	public static GZIPOutputStream compress(HttpServletResponse response)
+			throws IOException {
+		response.setHeader("Content-Encoding", "gzip");
+		OutputStream out = response.getOutputStream();
+		return new GZIPOutputStream(out, 8192, true);
+	}
+
+	private static boolean isZero(String q) {
+		try {
+			return Double.parseDouble(q) <= 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
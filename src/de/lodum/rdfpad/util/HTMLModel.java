@@ -16,11 +16,20 @@
 package de.lodum.rdfpad.util;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,19 +37,137 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 
 import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
-import com.hp.hpl.jena.rdf.model.ResIterator;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
-import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.Lock;
+
+import de.lodum.rdfpad.util.EtherpadHosts.ExportAPI;
 
 public class HTMLModel {
 
-	private static String FOOTER = "<hr /><p align=\"right\"><small><a href=\"http://ifgi.uni-muenster.de/~kessler/rdfpad/\">RDFpad is free and open source software</a>. Contact: <a property=\"dc:creator\" "
+	// the header of the HTML pages, encoded once and split where the base URL
+	// of the server goes:
+	private static final byte[][] HEADER = {
+			HTMLWriter.encode("<?xml version=\"1.0\" encoding=\"UTF-8\"?> \n"
+				+ "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML+RDFa 1.0//EN\" \"http://www.w3.org/MarkUp/DTD/xhtml-rdfa-1.dtd\">\n"
+				+ "<html xml:lang=\"en\"\n"
+				+ "      xmlns=\"http://www.w3.org/1999/xhtml\"\n"
+				+ "      xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+				+ "      xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\"\n"
+				+ "      xmlns:owl=\"http://www.w3.org/2002/07/owl#\"\n"
+				+ "      xmlns:xsd=\"http://www.w3.org/2001/XMLSchema#\"\n"
+				+ "      xmlns:dcterms=\"http://purl.org/dc/terms/\"\n"
+				+ "      xmlns:dct=\"http://purl.org/dc/terms/\"\n"
+				+ "      xmlns:foaf=\"http://xmlns.com/foaf/0.1/\"\n"
+				+ "      xmlns:wot=\"http://xmlns.com/wot/0.1/\"\n"
+				+ "      xmlns:prv=\"http://purl.org/net/provenance/ns#\"\n"
+				+ "      xmlns:opmv=\"http://purl.org/net/opmv/ns#\"\n"
+				+ "      xmlns:tisc=\"http://observedchange.com/tisc/ns#\"\n"
+				+ ">\n"
+				+ "<head>\n"
+				+ " <meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\" />\n"
+				+ "  <link rel=\"alternate\" type=\"application/rdf+xml\" href=\"tisc-20110426.owl\" />\n"
+				+ "  <link rel=\"stylesheet\" type=\"text/css\" href=\""),
+			HTMLWriter.encode("/files/style.css\" />\n"
+				+ "  <title>RDFpad</title>\n"
+				+ "</head>\n"
+				+ "<body>"
+				+ "  <a href=\"http://lodum.de\"><img src=\""),
+			HTMLWriter.encode("/files/lodum.png\" align = \"right\"/></a>"
+				+ "<h1 about=\"\" property=\"dcterms:title\" xml:lang=\"en\"><a href=\""),
+			HTMLWriter.encode("\">RDFpad</a></h1>\n") };
+
+	private static final byte[] FOOTER = HTMLWriter.encode("<hr /><p align=\"right\"><small><a href=\"http://ifgi.uni-muenster.de/~kessler/rdfpad/\">RDFpad is free and open source software</a>. Contact: <a property=\"dc:creator\" "
 			+ "href=\"http://ifgi.uni-muenster.de/~kessler/\">Carsten Keler</small></p>\n"
-			+ "</div>\n</div>\n</body>\n</html>";
+			+ "</div>\n</div>\n</body>\n</html>\n");
+
+	/**
+	 * Default number of subjects shown on one page of the HTML view. Can be set
+	 * via the system property <code>rdfpad.html.pagesize</code>; clients can
+	 * ask for other page sizes with the <code>limit</code> parameter.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	/**
+	 * Largest page size a client can ask for.
+	 */
+	public static final int MAX_PAGE_SIZE = 10000;
+
+	// number of subjects after which the first rows are sent to the client:
+	private static final int FIRST_ROWS = 20;
+
+	// threads probing hosts and retrying failed downloads, which must be
+	// done neither by the request threads nor by the threads of the HTTP
+	// client reporting a failure, as they have to wait for the etherpad:
+	private static final int PROBE_THREADS = 16;
+
+	private static final Histogram RESOLVE_TIME = Metrics.histogram(
+			"rdfpad_resolve_seconds",
+			"Time to find the export URL of a pad, including host probes.");
+	private static final Histogram HTML_TIME = Metrics.histogram(
+			"rdfpad_html_seconds",
+			"Time to render and send the HTML view of a pad.");
+
+	private final ModelCache cache;
+	private final EtherpadHosts hosts;
+	private final int pageSize;
+
+	private ThreadPoolExecutor probes;
+
+	/**
+	 * Creates an HTML renderer with the page size configured from the system
+	 * property <code>rdfpad.html.pagesize</code>.
+	 * 
+	 * @param cache
+	 *            the cache the parsed pads are taken from
+	 * @param hosts
+	 *            the export APIs of the etherpad hosts seen so far
+	 */
+	public HTMLModel(ModelCache cache, EtherpadHosts hosts) {
+		this(cache, hosts, Integer.getInteger("rdfpad.html.pagesize",
+				DEFAULT_PAGE_SIZE));
+	}
+
+	/**
+	 * @param cache
+	 *            the cache the parsed pads are taken from
+	 * @param hosts
+	 *            the export APIs of the etherpad hosts seen so far
+	 * @param pageSize
+	 *            the default number of subjects shown on one page
+	 */
+	public HTMLModel(ModelCache cache, EtherpadHosts hosts, int pageSize) {
+		this.cache = cache;
+		this.hosts = hosts;
+		this.pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+	}
+
+	public synchronized void start() {
+		if (probes != null)
+			return;
+		probes = new ThreadPoolExecutor(PROBE_THREADS, PROBE_THREADS, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "rdfpad-probe-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// probes are rare, so the threads are not kept around:
+		probes.allowCoreThreadTimeOut(true);
+	}
+
+	public synchronized void stop() {
+		if (probes != null)
+			probes.shutdownNow();
+		probes = null;
+	}
 
 	/**
 	 * Shows the input form for the etherpad URL.
@@ -54,40 +181,36 @@ public class HTMLModel {
 	public void showForm(boolean error, String msg, Request baseRequest,
 			HttpServletRequest request, HttpServletResponse response)
 			throws IOException {
-		response.setContentType("text/html");
+		response.setContentType("text/html; charset=UTF-8");
 		response.setStatus(HttpServletResponse.SC_OK);
 		baseRequest.setHandled(true);
-		PrintWriter writer = response.getWriter();
-		writer.println(getHeader(request));
+		HTMLWriter out = new HTMLWriter(response.getOutputStream());
+		byte[] baseURL = HTMLWriter.encode(getRequestBaseURL(request));
+		writeHeader(out, baseURL);
 
 		String padPath = (request.getRequestURI()).split(".htm")[0];
 
 		if (error)
-			writer.println("<p class=\"error\">Error while processing <a property=\"rdf:about\" href=\""
-					+ "http:/"
-					+ padPath
-					+ "\">http:/"
-					+ padPath
-					+ "</a>:<br />" + msg + "</p>");
+			out.markup("<p class=\"error\">Error while processing <a property=\"rdf:about\" href=\"")
+					.text("http:/" + padPath).markup("\">")
+					.text("http:/" + padPath).markup("</a>:<br />")
+					.text(String.valueOf(msg)).markup("</p>\n");
 		else
-			writer.println("<p>" + msg + "</p>");
+			out.markup("<p>").text(msg).markup("</p>\n");
 
-		String padURL = "http:/" + (request.getRequestURI()).split(".htm")[0];
+		String padURL = "http:/" + padPath;
 		if (padURL.equals("http://")) {
 			padURL = "http://typewith.me/p/lodum";
-			writer.println("<p>Try this one:</p>");
+			out.markup("<p>Try this one:</p>\n");
 		}
 
-		writer.println("<form action=\"http://"
+		out.markup("<form action=\"").write(baseURL)
+				.markup("\" method=\"POST\"><input type=\"text\" size=\"60\" name=\"pad\" value=\"")
+				.text(padURL)
+				.markup("\" /><input type=\"submit\" value=\"Get RDF\" /></form>\n");
 
-				+ request.getServerName()
-				+ ":"
-				+ request.getServerPort()
-				+ "\" method=\"POST\"><input type=\"text\" size=\"60\" name=\"pad\" value=\""
-				+ padURL + "\" />"
-				+ "<input type=\"submit\" value=\"Get RDF\" /></form>");
-
-		writer.println(FOOTER);
+		out.write(FOOTER);
+		out.flush();
 	}
 
 	/**
@@ -103,194 +226,428 @@ public class HTMLModel {
 	}
 
 	/**
-	 * Generates an HTML view for the requested pad. Will forward to the
-	 * showForm method if anything goes wrong (invalid etherpad URL, parsing
-	 * error in the RDF code, ...).
+	 * Generates an HTML view for the requested pad, one page of subjects at a
+	 * time as selected by the <code>offset</code> and <code>limit</code>
+	 * parameters. The response is sent chunked, so that the first rows reach
+	 * the client before the page has been rendered completely, and compressed
+	 * on the fly if the client accepts gzip.
 	 * 
+	 * @param pad
+	 *            the parsed pad
 	 * @param baseRequest
 	 * @param request
 	 * @param response
 	 * @throws IOException
 	 */
-	public void getHTML(Request baseRequest, HttpServletRequest request,
-			HttpServletResponse response) throws IOException {
-		PrintWriter writer = response.getWriter();
-		String exportURL = getPadContentURL(new URL(
-				("http:/" + request.getRequestURI()).split(".htm")[0]));
-
-		Model model = ModelFactory.createDefaultModel();
-
-		try {
-			model.read(exportURL, "TTL");
-		} catch (Exception e) {
-			showForm(true, e.getLocalizedMessage(), baseRequest, request,
-					response);
-			return;
-		}
-
-		response.setContentType("text/html");
+	public void getHTML(CachedPad pad, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		response.setContentType("text/html; charset=UTF-8");
 		response.setStatus(HttpServletResponse.SC_OK);
 		baseRequest.setHandled(true);
 
-		String padPath = (request.getRequestURI()).split(".htm")[0];
+		int offset = getParameter(request, "offset", 0);
+		int limit = getParameter(request, "limit", pageSize);
+		response.setHeader("Vary", "Accept-Encoding");
+		GZIPOutputStream gzip = Gzip.isAccepted(request) ? Gzip
+				.compress(response) : null;
+		writeHTML(pad, getRequestBaseURL(request),
+				(request.getRequestURI()).split(".htm")[0], offset,
+				Math.max(1, Math.min(limit, MAX_PAGE_SIZE)),
+				gzip != null ? gzip : response.getOutputStream());
+		if (gzip != null)
+			gzip.finish();
+	}
 
-		writer.println(getHeader(request)
-				+ "\n<p>based on <a property=\"rdf:about\" href=\"" + "http:/"
-				+ padPath + "\">http:/" + padPath + "</a></p>");
+	/**
+	 * Writes one page of the HTML view of a pad. The static parts of the page
+	 * are written as pre-encoded bytes and the rows of the table go straight
+	 * to the stream, with all text HTML-escaped. The stream is flushed after
+	 * the summary and again after the first rows.
+	 * 
+	 * @param pad
+	 *            the parsed pad
+	 * @param baseURL
+	 *            the base URL of the server, see
+	 *            {@link #getRequestBaseURL(HttpServletRequest)}
+	 * @param padPath
+	 *            the path of the pad, i.e. its URL without "http:/"
+	 * @param offset
+	 *            the index of the first subject to show
+	 * @param limit
+	 *            the number of subjects to show
+	 * @param stream
+	 * @throws IOException
+	 */
+	public void writeHTML(CachedPad pad, String baseURL, String padPath,
+			int offset, int limit, OutputStream stream) throws IOException {
+		long start = System.nanoTime();
+		Model model = pad.getModel();
+		Map<String, String> prefixes = pad.getPrefixes();
+		HTMLWriter out = new HTMLWriter(stream);
+		byte[] base = HTMLWriter.encode(baseURL);
+		byte[] padLink = HTMLWriter.encode(baseURL + padPath);
+
+		writeHeader(out, base);
+		out.markup("<p>based on <a property=\"rdf:about\" href=\"")
+				.text("http:/" + padPath).markup("\">")
+				.text("http:/" + padPath).markup("</a></p>\n");
 
 		// list all name spaces:
-		writer.println("<hr /><h2>Namespaces</h2>");
-		Map<String, String> ns = model.getNsPrefixMap();
-		Iterator<String> keys = ns.keySet().iterator();
-		while (keys.hasNext()) {
-			String key = keys.next();
-			writer.println("<a href=\"" + model.getNsPrefixURI(key) + "\">"
-					+ key + "</a> ");
+		out.markup("<hr /><h2>Namespaces</h2>\n");
+		Map<String, String> namespaces;
+		long triples;
+		model.enterCriticalSection(Lock.READ);
+		try {
+			namespaces = new TreeMap<String, String>(model.getNsPrefixMap());
+			triples = model.size();
+		} finally {
+			model.leaveCriticalSection();
+		}
+		for (Map.Entry<String, String> ns : namespaces.entrySet()) {
+			out.markup("<a href=\"").text(ns.getValue()).markup("\">")
+					.text(ns.getKey()).markup("</a> \n");
 		}
 
-		writer.println("</p><hr /><h2>Triples</h2>\n<table>");
-
-		// get all resources that appear as subjects:
-		for (ResIterator rit = model.listSubjects(); rit.hasNext();) {
-			Resource subject = rit.next();
+		out.markup("</p><hr /><h2>Triples</h2>\n");
+
+		int subjects = pad.getSubjectCount();
+		offset = Math.max(0, Math.min(offset, subjects));
+		int end = (int) Math.min((long) offset + limit, subjects);
+		out.markup("<p>").text(String.valueOf(triples))
+				.markup(" triples about ").text(String.valueOf(subjects))
+				.markup(" subjects");
+		if (offset > 0 || end < subjects)
+			out.markup(", showing subjects ").text(String.valueOf(offset + 1))
+					.markup(" to ").text(String.valueOf(end));
+		out.markup(".</p>\n");
+		writePageLinks(out, offset, limit, subjects);
+		out.flush();
+
+		out.markup("<table>\n");
+
+		// the subjects of this page, in sorted order:
+		for (int i = offset; i < end; i++) {
+			Resource subject = pad.getSubject(i);
+			if (i == offset + FIRST_ROWS)
+				out.flush();
 
 			boolean printedSubject = false;
 
-			for (StmtIterator it = model.listStatements(subject,
-					(Property) null, (RDFNode) null); it.hasNext();) {
-				Statement stm = it.nextStatement();
+			for (Statement stm : listStatements(model, subject)) {
 
 				// print each subject only once:
+				out.markup("<tr><td>");
 				if (!printedSubject) {
-					writer.println("<tr><td>" + nodeToHTML(subject) + "</td>");
+					writeNode(out, subject, prefixes);
 					printedSubject = true;
-				} else {
-					// empty table cell:
-					writer.println("<tr><td></td>");
 				}
+				out.markup("</td>\n<td>");
+				writeNode(out, stm.getPredicate(), prefixes);
+				out.markup("</td>\n<td>");
+				writeNode(out, stm.getObject(), prefixes);
+				out.markup("</td></tr>\n");
+			}
+		}
 
-				writer.println("<td>" + nodeToHTML(stm.getPredicate())
-						+ "</td>");
-
-				writer.println("<td>" + nodeToHTML(stm.getObject())
-						+ "</td></tr>");
+		out.markup("</table>\n");
+		writePageLinks(out, offset, limit, subjects);
+		out.markup("<hr /><p>View as <a href=\"").write(padLink)
+				.markup(".rdf\">RDF/XML</a> | <a href=\"").write(padLink)
+				.markup(".nt\">N-Triples</a> | <a href=\"").write(padLink)
+				.markup(".ttl\">Turtle</a> | <a href=\"").write(padLink)
+				.markup(".n3\">N3</a> &ndash; View in <a href=\"http://inspector.sindice.com/inspect?url=")
+				.text(pad.getExportURL())
+				.markup("\">Sindice Inspector</a>&ndash; Query with <a href=\"http://query.lodum.de?queryFrom=")
+				.write(padLink).markup(".rdf\">SPARQLfly</a></p>\n");
+		out.write(FOOTER);
+		out.flush();
+		HTML_TIME.recordSince(start);
+	}
 
-			}
+	/**
+	 * Lists the statements about a subject. The model is locked only while
+	 * they are copied, so that a slow client does not hold up updates of the
+	 * model.
+	 *
+	 * @param model
+	 * @param subject
+	 * @return
+	 */
+	private static List<Statement> listStatements(Model model,
+			Resource subject) {
+		model.enterCriticalSection(Lock.READ);
+		try {
+			return model.listStatements(subject, (Property) null,
+					(RDFNode) null).toList();
+		} finally {
+			model.leaveCriticalSection();
 		}
+	}
 
-		// model.write(response.getWriter(), "N-TRIPLE");
-		writer.println("</table>");
-		writer.println("<hr /><p>View as <a href=\""
-				+ getRequestBaseURL(request) + padPath
-				+ ".rdf\">RDF/XML</a> | <a href=\""
-				+ getRequestBaseURL(request) + padPath
-				+ ".nt\">N-Triples</a> | <a href=\""
-				+ getRequestBaseURL(request) + padPath
-				+ ".ttl\">Turtle</a> | <a href=\"" + getRequestBaseURL(request)
-				+ padPath + ".n3\">N3</a> &ndash; "
-				+ "View in <a href=\"http://inspector.sindice.com/inspect?url="
-				+ exportURL + "\">Sindice Inspector</a>&ndash;"
-				+ " Query with <a href=\"http://query.lodum.de?queryFrom="+getRequestBaseURL(request) + padPath+".rdf\">SPARQLfly</a></p>"
-				); // TODO
-		writer.println(FOOTER);
+	/**
+	 * Writes links to the previous and the next page, if there are any.
+	 * 
+	 * @param out
+	 * @param offset
+	 * @param limit
+	 * @param subjects
+	 *            the number of subjects of the pad
+	 * @throws IOException
+	 */
+	private void writePageLinks(HTMLWriter out, int offset, int limit,
+			int subjects) throws IOException {
+		if (offset == 0 && offset + limit >= subjects)
+			return;
+		out.markup("<p>");
+		if (offset > 0)
+			out.markup("<a href=\"?offset=")
+					.text(String.valueOf(Math.max(0, offset - limit)))
+					.markup("&amp;limit=").text(String.valueOf(limit))
+					.markup("\">&laquo; previous</a>");
+		if (offset > 0 && offset + limit < subjects)
+			out.markup(" | ");
+		if (offset + limit < subjects)
+			out.markup("<a href=\"?offset=")
+					.text(String.valueOf(offset + limit))
+					.markup("&amp;limit=").text(String.valueOf(limit))
+					.markup("\">next &raquo;</a>");
+		out.markup("</p>\n");
 	}
 
 	/**
-	 * Generates HTML code for an RDFNode; if the node is a URIResource, it will
-	 * be rendered as a link; otherwise, as simple text.
+	 * Reads a non-negative integer request parameter.
 	 * 
-	 * @param node
+	 * @param request
+	 * @param name
+	 * @param defaultValue
+	 *            returned if the parameter is missing or not a valid number
 	 * @return
 	 */
-	private String nodeToHTML(RDFNode node) {
+	private static int getParameter(HttpServletRequest request, String name,
+			int defaultValue) {
+		String value = request.getParameter(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			int i = Integer.parseInt(value.trim());
+			return i < 0 ? defaultValue : i;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Writes the HTML code for an RDFNode; if the node is a URIResource, it
+	 * will be rendered as a link, abbreviated with its namespace prefix if
+	 * there is one; otherwise, as simple text.
+	 * 
+	 * @param out
+	 * @param node
+	 * @param prefixes
+	 *            namespace prefixes by namespace URI
+	 * @throws IOException
+	 */
+	private void writeNode(HTMLWriter out, RDFNode node,
+			Map<String, String> prefixes) throws IOException {
 		if (node.isURIResource()) {
 			Resource r = node.asResource();
-			String ns = r.getModel().getNsURIPrefix(r.getNameSpace());
-			if (ns == null) {
-				return ("<a href=\"" + node.toString() + "\">"
-						+ node.toString() + "</a>");
-			} else {
-				return ("<a href=\"" + node.toString() + "\">" + ns + ":"
-						+ r.getLocalName() + "</a>");
-			}
+			String uri = r.getURI();
+			String prefix = prefixes.get(r.getNameSpace());
+			out.markup("<a href=\"").text(uri).markup("\">");
+			if (prefix == null)
+				out.text(uri);
+			else
+				out.text(prefix).markup(":").text(r.getLocalName());
+			out.markup("</a>");
 		} else {
-			return (node.toString());
+			out.text(node.toString());
+		}
+	}
+
+	/**
+	 * Loads the given pad through the cache and hands it to the listener,
+	 * without waiting for the etherpad: if the export API of the etherpad
+	 * host is not known yet, the host is probed by another thread. If the
+	 * etherpad host cannot be reached or fails although its export API
+	 * was already known, the host is probed again and the download is
+	 * retried once, in case the etherpad has been replaced in the meantime.
+	 * If the host answers that there is no such pad, the pad is asked for
+	 * through the other export API instead, and the host is only taken to
+	 * speak that API if it answers. As the failure is reported by a thread of
+	 * the HTTP client, retries are done by another thread. A host that is
+	 * merely too busy is neither probed nor asked again.
+	 * 
+	 * @param padURL
+	 * @param listener
+	 */
+	public void loadPad(final URL padURL,
+			final ModelCache.LoadListener listener) {
+		if (hosts.isKnown(padURL)) {
+			load(padURL, listener, true);
+			return;
+		}
+		if (!inBackground(new Runnable() {
+			public void run() {
+				try {
+					load(padURL, listener, false);
+				} catch (RuntimeException e) {
+					listener.failed(e);
+				}
+			}
+		}))
+			load(padURL, listener, false);
+	}
+
+	/**
+	 * Loads a pad as described for {@link #loadPad(URL, ModelCache.LoadListener)}.
+	 * 
+	 * @param padURL
+	 * @param listener
+	 * @param known
+	 *            whether the export API of the host was known before
+	 */
+	private void load(final URL padURL,
+			final ModelCache.LoadListener listener, final boolean known) {
+		final String exportURL = getPadContentURL(padURL);
+		cache.load(exportURL, new ModelCache.LoadListener() {
+			public void loaded(CachedPad pad) {
+				listener.loaded(pad);
+			}
+
+			public void failed(final Throwable failure) {
+				if (!(failure instanceof IOException)
+						|| failure instanceof HostUnavailableException) {
+					listener.failed(failure);
+					return;
+				}
+				// the pad itself is missing, not necessarily the API:
+				if (failure instanceof HttpStatusException
+						&& ((HttpStatusException) failure).getStatus() < 500) {
+					if (!known || !inBackground(new Runnable() {
+						public void run() {
+							loadElsewhere(padURL, exportURL, failure, listener);
+						}
+					}))
+						listener.failed(failure);
+					return;
+				}
+				hosts.forget(padURL);
+				if (!known || !inBackground(new Runnable() {
+					public void run() {
+						try {
+							cache.load(getPadContentURL(padURL), listener);
+						} catch (RuntimeException e) {
+							listener.failed(e);
+						}
+					}
+				}))
+					listener.failed(failure);
+			}
+		});
+	}
+
+	/**
+	 * Asks for a pad through the export API other than that of the given
+	 * export URL, and remembers that API for the host if it works.
+	 * 
+	 * @param padURL
+	 * @param exportURL
+	 *            the export URL that has failed
+	 * @param failure
+	 *            reported if the other API fails as well
+	 * @param listener
+	 */
+	private void loadElsewhere(URL padURL, String exportURL,
+			final Throwable failure, final ModelCache.LoadListener listener) {
+		ExportAPI other;
+		try {
+			other = EtherpadHosts.apiOf(new URL(exportURL)) == ExportAPI.LEGACY ? ExportAPI.CURRENT
+					: ExportAPI.LEGACY;
+		} catch (MalformedURLException e) {
+			listener.failed(failure);
+			return;
+		}
+		final String otherURL = other.exportURL(padURL, getPadName(padURL));
+		cache.load(otherURL, new ModelCache.LoadListener() {
+			public void loaded(CachedPad pad) {
+				hosts.learn(otherURL);
+				listener.loaded(pad);
+			}
+
+			public void failed(Throwable ignored) {
+				listener.failed(failure);
+			}
+		});
+	}
+
+	/**
+	 * Runs a probe or a retry on one of the probe threads.
+	 * 
+	 * @param task
+	 * @return false if the task could not be started
+	 */
+	private boolean inBackground(Runnable task) {
+		ExecutorService probes;
+		synchronized (this) {
+			probes = this.probes;
+		}
+		if (probes == null)
+			return false;
+		try {
+			probes.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
 		}
 	}
 
 	/**
 	 * Retrieves the URL for plain text export from the given etherpad URL for
-	 * the current state of the pad.
+	 * the current state of the pad. The export API of the etherpad host is
+	 * only probed the first time a pad from that host is requested.
 	 * 
 	 * @param padURL
 	 * @return
-	 * @throws IOException
 	 */
-	public String getPadContentURL(URL padURL) throws IOException {
+	public String getPadContentURL(URL padURL) {
 
-		String path = padURL.getPath();
-
-		// The name of the pad is the last chunk of the path:
-		String[] pathSegments = path.split("/");
-		String padname = pathSegments[pathSegments.length - 1];
+		String padname = getPadName(padURL);
 
 		// construct the export URI; looks like
 		// http://ifgipedia.uni-muenster.de/ep/pad/export/foaf-carsten/latest?format=txt
-		//String exportURL = padURL.getProtocol() + "://" + padURL.getHost()
-		//		+ "/p/" + padname + "/export/txt";
-        String exportURL = padURL.getProtocol() + "://" + padURL.getHost()
-        + "/ep/pad/export/" + padname + "/latest?format=txt";
-		URL url= new URL(exportURL);
-		URLConnection con = url.openConnection();
-	
-		con.connect();
-		if(con.getContentLength()==-1){
-			//	System.out.println("geht nicht");
-		exportURL = padURL.getProtocol() + "://" + padURL.getHost()
-				+ "/p/" + padname + "/export/txt";
-		}
-
-		return exportURL;
+		// or http://typewith.me/p/lodum/export/txt
+		long start = System.nanoTime();
+		ExportAPI api = hosts.getExportAPI(padURL, padname);
+		RESOLVE_TIME.recordSince(start);
+		return api.exportURL(padURL, padname);
 	}
 
 	/**
-	 * Provides the header for the HTML pages.
+	 * Returns the name of the pad, which is the last chunk of the path of its
+	 * URL.
 	 * 
-	 * @param request
+	 * @param padURL
 	 * @return
 	 */
-	private String getHeader(HttpServletRequest request) {
-		String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?> \n"
-				+ "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML+RDFa 1.0//EN\" \"http://www.w3.org/MarkUp/DTD/xhtml-rdfa-1.dtd\">\n"
-				+ "<html xml:lang=\"en\"\n"
-				+ "      xmlns=\"http://www.w3.org/1999/xhtml\"\n"
-				+ "      xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
-				+ "      xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\"\n"
-				+ "      xmlns:owl=\"http://www.w3.org/2002/07/owl#\"\n"
-				+ "      xmlns:xsd=\"http://www.w3.org/2001/XMLSchema#\"\n"
-				+ "      xmlns:dcterms=\"http://purl.org/dc/terms/\"\n"
-				+ "      xmlns:dct=\"http://purl.org/dc/terms/\"\n"
-				+ "      xmlns:foaf=\"http://xmlns.com/foaf/0.1/\"\n"
-				+ "      xmlns:wot=\"http://xmlns.com/wot/0.1/\"\n"
-				+ "      xmlns:prv=\"http://purl.org/net/provenance/ns#\"\n"
-				+ "      xmlns:opmv=\"http://purl.org/net/opmv/ns#\"\n"
-				+ "      xmlns:tisc=\"http://observedchange.com/tisc/ns#\"\n"
-				+ ">\n"
-				+ "<head>\n"
-				+ " <meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\" />\n"
-				+ "  <link rel=\"alternate\" type=\"application/rdf+xml\" href=\"tisc-20110426.owl\" />\n"
-				+ "  <link rel=\"stylesheet\" type=\"text/css\" href=\""
-				+ getRequestBaseURL(request)
-				+ "/files/style.css\" />\n"
-				+ "  <title>RDFpad</title>\n"
-				+ "</head>\n"
-				+ "<body>"
-				+ "  <a href=\"http://lodum.de\"><img src=\""
-				+ getRequestBaseURL(request)
-				+ "/files/lodum.png\" align = \"right\"/></a>"
-				+ "<h1 about=\"\" property=\"dcterms:title\" xml:lang=\"en\"><a href=\""
-				+ getRequestBaseURL(request) + "\">RDFpad</a></h1>";
+	private static String getPadName(URL padURL) {
+		String[] pathSegments = padURL.getPath().split("/");
+		return pathSegments[pathSegments.length - 1];
+	}
 
-		return header;
+	/**
+	 * Writes the header of the HTML pages.
+	 * 
+	 * @param out
+	 * @param baseURL
+	 *            the encoded base URL of the server
+	 * @throws IOException
+	 */
+	private void writeHeader(HTMLWriter out, byte[] baseURL) throws IOException {
+		for (int i = 0; i < HEADER.length; i++) {
+			if (i > 0)
+				out.write(baseURL);
+			out.write(HEADER[i]);
+		}
 	}
 }
@@ -0,0 +1,167 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Buffered UTF-8 output for HTML pages, writing straight to the response
+ * output stream. Static parts of a page can be encoded once with
+ * {@link #encode(String)} and written as bytes; markup is written as is and
+ * text is HTML-escaped on the fly, without building intermediate strings.
+ */
+public class HTMLWriter {
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[8192];
+	private int count = 0;
+
+	/**
+	 * @param out
+	 *            the stream to write to, usually the response output stream
+	 */
+	public HTMLWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Encodes a static part of a page as UTF-8.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public static byte[] encode(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every Java platform is required to support UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes pre-encoded bytes.
+	 *
+	 * @param bytes
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public HTMLWriter write(byte[] bytes) throws IOException {
+		if (bytes.length > buffer.length - count) {
+			flushBuffer();
+			if (bytes.length > buffer.length) {
+				out.write(bytes);
+				return this;
+			}
+		}
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+		return this;
+	}
+
+	/**
+	 * Writes markup without escaping it.
+	 *
+	 * @param markup
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public HTMLWriter markup(String markup) throws IOException {
+		for (int i = 0; i < markup.length(); i++)
+			writeChar(markup, i);
+		return this;
+	}
+
+	/**
+	 * Writes text, escaping the characters that have a meaning in HTML, so
+	 * that the text can also be used in attribute values.
+	 *
+	 * @param text
+	 * @return this writer
+	 * @throws IOException
+	 */
+	public HTMLWriter text(String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				markup("&amp;");
+				break;
+			case '<':
+				markup("&lt;");
+				break;
+			case '>':
+				markup("&gt;");
+				break;
+			case '"':
+				markup("&quot;");
+				break;
+			default:
+				i = writeChar(text, i);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Writes out everything buffered so far and flushes the stream.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Writes the UTF-8 bytes of the character at index i and returns the
+	 * index of its last char, which differs from i for surrogate pairs.
+	 */
+	private int writeChar(String s, int i) throws IOException {
+		if (buffer.length - count < 4)
+			flushBuffer();
+		int c = s.charAt(i);
+		if (Character.isHighSurrogate((char) c) && i + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(i + 1))) {
+			c = Character.toCodePoint((char) c, s.charAt(++i));
+		}
+		if (c < 0x80) {
+			buffer[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[count++] = (byte) (0xc0 | (c >> 6));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		} else if (c < 0x10000) {
+			buffer[count++] = (byte) (0xe0 | (c >> 12));
+			buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		} else {
+			buffer[count++] = (byte) (0xf0 | (c >> 18));
+			buffer[count++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+			buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+		return i;
+	}
+}
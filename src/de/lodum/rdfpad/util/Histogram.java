@@ -0,0 +1,176 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in microseconds, with log-linear
+ * buckets in the style of HdrHistogram: each power of two is split into 8
+ * buckets, so that any recorded value is known within 12.5%, at a fixed
+ * cost of a few hundred counters and no allocation per value.
+ */
+public class Histogram {
+
+	// sub-buckets per power of two, as a power of two:
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// values from 2^MAX_EXPONENT microseconds (about 12 days) on share the
+	// last bucket:
+	private static final int MAX_EXPONENT = 40;
+
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param micros
+	 *            in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		counts.incrementAndGet(indexOf(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while (micros > (m = max.get()) && !max.compareAndSet(m, micros))
+			;
+	}
+
+	/**
+	 * Records the time elapsed since the given start time.
+	 *
+	 * @param startNanos
+	 *            as returned by {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Returns the number of recorded durations.
+	 *
+	 * @return
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of the recorded durations, in microseconds.
+	 *
+	 * @return
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the longest recorded duration, in microseconds.
+	 *
+	 * @return
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the number of recorded durations shorter than the given one.
+	 * Exact if the duration is a power of two, otherwise within the bucket
+	 * it falls into.
+	 *
+	 * @param micros
+	 * @return
+	 */
+	public long getCountBelow(long micros) {
+		long below = 0;
+		for (int i = 0; i < BUCKETS && upperBound(i) <= micros; i++)
+			below += counts.get(i);
+		return below;
+	}
+
+	/**
+	 * Returns the duration below which the given percentage of the recorded
+	 * durations lies, as the upper bound of its bucket but at most the
+	 * longest recorded duration.
+	 *
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return in microseconds, 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			total += snapshot[i] = counts.get(i);
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds the durations recorded by another histogram to this one.
+	 *
+	 * @param other
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.addAndGet(i, other.counts.get(i));
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long m, o = other.max.get();
+		while (o > (m = max.get()) && !max.compareAndSet(m, o))
+			;
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// the smallest value that does not belong to the given bucket:
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index + 1;
+		if (index == BUCKETS - 1)
+			return Long.MAX_VALUE;
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+	}
+}
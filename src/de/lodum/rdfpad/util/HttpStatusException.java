@@ -0,0 +1,43 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the {@link UpstreamClient} when an etherpad host answers with a
+ * status other than 200.
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	public HttpStatusException(int status, String url) {
+		super("HTTP " + status + " for " + url);
+		this.status = status;
+	}
+
+	/**
+	 * Returns the status the host answered with.
+	 *
+	 * @return
+	 */
+	public int getStatus() {
+		return status;
+	}
+}
@@ -0,0 +1,250 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The metrics of the server: histograms of how long each phase of handling a
+ * request takes, counters and gauges, each registered once under a name and
+ * written out in the Prometheus text format by {@link #write(Writer)}.
+ * <p>
+ * Like loggers, metrics are usually kept in static fields of the class that
+ * records them. A metric can have one label, e.g. the serialization format;
+ * labels that come from requests, like etherpad hosts, are limited to
+ * {@link #MAX_LABELS} values per metric, further values are counted as
+ * "other".
+ */
+public final class Metrics {
+
+	/**
+	 * The number of label values a metric keeps apart at most.
+	 */
+	public static final int MAX_LABELS = 100;
+
+	/**
+	 * Supplies the current value of a gauge, or of a counter kept elsewhere,
+	 * when the metrics are written.
+	 */
+	public interface Reading {
+		long getValue();
+	}
+
+	// the bucket bounds written for histograms: powers of two from 128
+	// microseconds to about two minutes, for which the counts are exact:
+	private static final int MIN_BOUND = 7;
+	private static final int MAX_BOUND = 27;
+
+	private static final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	/**
+	 * A metric with all of its label values.
+	 */
+	private static class Family {
+		final String name;
+		final String help;
+		final String type;
+		final String label;
+		final ConcurrentMap<String, Object> children = new ConcurrentSkipListMap<String, Object>();
+
+		Family(String name, String help, String type, String label) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.label = label;
+		}
+
+		Object get(String value, Object created) {
+			Object child = children.get(value);
+			if (child != null)
+				return child;
+			if (children.size() >= MAX_LABELS)
+				value = "other";
+			child = children.putIfAbsent(value, created);
+			return child == null ? created : child;
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * Returns the histogram of durations with the given name, registering it
+	 * the first time. Its name should end with "_seconds".
+	 *
+	 * @param name
+	 * @param help
+	 *            what is measured
+	 * @return
+	 */
+	public static Histogram histogram(String name, String help) {
+		return histogram(name, help, null, null);
+	}
+
+	/**
+	 * Returns the histogram of durations with the given name and label
+	 * value, registering it the first time.
+	 *
+	 * @param name
+	 * @param help
+	 *            what is measured
+	 * @param label
+	 *            the name of the label, e.g. "format"
+	 * @param value
+	 *            the value of the label, e.g. "TURTLE"
+	 * @return
+	 */
+	public static Histogram histogram(String name, String help, String label,
+			String value) {
+		return (Histogram) family(name, help, "histogram", label).get(
+				value == null ? "" : value, new Histogram());
+	}
+
+	/**
+	 * Returns the counter with the given name, registering it the first
+	 * time. Its name should end with "_total".
+	 *
+	 * @param name
+	 * @param help
+	 *            what is counted
+	 * @return
+	 */
+	public static Counter counter(String name, String help) {
+		return counter(name, help, null, null);
+	}
+
+	/**
+	 * Returns the counter with the given name and label value, registering
+	 * it the first time.
+	 *
+	 * @param name
+	 * @param help
+	 *            what is counted
+	 * @param label
+	 *            the name of the label, e.g. "host"
+	 * @param value
+	 *            the value of the label
+	 * @return
+	 */
+	public static Counter counter(String name, String help, String label,
+			String value) {
+		return (Counter) family(name, help, "counter", label).get(
+				value == null ? "" : value, new Counter());
+	}
+
+	/**
+	 * Registers a counter whose value is kept elsewhere, replacing any
+	 * earlier one with the same name.
+	 *
+	 * @param name
+	 * @param help
+	 *            what is counted
+	 * @param reading
+	 */
+	public static void counter(String name, String help, Reading reading) {
+		family(name, help, "counter", null).children.put("", reading);
+	}
+
+	/**
+	 * Registers a gauge, replacing any earlier gauge with the same name.
+	 *
+	 * @param name
+	 * @param help
+	 *            what is measured
+	 * @param reading
+	 */
+	public static void gauge(String name, String help, Reading reading) {
+		family(name, help, "gauge", null).children.put("", reading);
+	}
+
+	private static Family family(String name, String help, String type,
+			String label) {
+		Family family = families.get(name);
+		if (family == null) {
+			Family created = new Family(name, help, type, label);
+			family = families.putIfAbsent(name, created);
+			if (family == null)
+				family = created;
+		}
+		if (!family.type.equals(type))
+			throw new IllegalArgumentException(name + " is a " + family.type);
+		return family;
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text format, version 0.0.4.
+	 * Durations are written in seconds.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(Writer out) throws IOException {
+		for (Family family : families.values()) {
+			out.write("# HELP " + family.name + " " + family.help + "\n");
+			out.write("# TYPE " + family.name + " " + family.type + "\n");
+			for (Map.Entry<String, Object> child : family.children.entrySet()) {
+				String labels = family.label == null ? "" : family.label
+						+ "=\"" + escape(child.getKey()) + "\"";
+				Object metric = child.getValue();
+				if (metric instanceof Histogram)
+					write(out, family.name, labels, (Histogram) metric);
+				else if (metric instanceof Counter)
+					write(out, family.name, labels, ((Counter) metric).get());
+				else
+					write(out, family.name, labels, ((Reading) metric)
+							.getValue());
+			}
+		}
+		out.flush();
+	}
+
+	private static void write(Writer out, String name, String labels,
+			Histogram histogram) throws IOException {
+		String prefix = labels.length() == 0 ? "" : labels + ",";
+		for (int i = MIN_BOUND; i <= MAX_BOUND; i++) {
+			long bound = 1L << i;
+			out.write(name + "_bucket{" + prefix + "le=\"" + seconds(bound)
+					+ "\"} " + histogram.getCountBelow(bound) + "\n");
+		}
+		long count = histogram.getCountBelow(Long.MAX_VALUE);
+		out.write(name + "_bucket{" + prefix + "le=\"+Inf\"} " + count + "\n");
+		String braces = labels.length() == 0 ? "" : "{" + labels + "}";
+		out.write(name + "_sum" + braces + " " + seconds(histogram.getSum())
+				+ "\n");
+		out.write(name + "_count" + braces + " " + count + "\n");
+	}
+
+	private static void write(Writer out, String name, String labels,
+			long value) throws IOException {
+		out.write(name + (labels.length() == 0 ? "" : "{" + labels + "}")
+				+ " " + value + "\n");
+	}
+
+	private static String seconds(long micros) {
+		return BigDecimal.valueOf(micros, 6).stripTrailingZeros()
+				.toPlainString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace(
+				"\n", "\\n");
+	}
+}
@@ -0,0 +1,1019 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.Lock;
+
+/**
+ * Keeps pads in memory so that repeated requests for the same pad skip both
+ * the download from the etherpad and the Turtle parser. Entries are keyed
+ * by the export URL of the pad, expire after a configurable time to live and
+ * are evicted least-recently-used first once their estimated heap weight
+ * exceeds the configured limit. Pads that would take up more than a quarter
+ * of the limit on their own are not cached at all, so that a single huge pad
+ * cannot push out hundreds of small ones.
+ * <p>
+ * Expired pads are kept until they are evicted: if a pad is downloaded again
+ * and its contents have not changed, the old model and its serializations are
+ * reused instead of parsing the pad again. For a while after it has expired,
+ * a pad is also served as it is while it is downloaded again in the
+ * background, and for much longer if the download fails, e.g. because the
+ * etherpad is down: old triples right away are worth more to a Linked Data
+ * client than an error after a timeout.
+ * <p>
+ * A pad is only parsed into a Jena model once a request needs the model, i.e.
+ * for the HTML view and the serializations other than Turtle and N-Triples,
+ * and for all serializations of pads in other syntaxes. Those two are
+ * converted straight from the contents of Turtle and N-Triples pads by the
+ * {@link TurtleStreamer}; for pads larger than the stream threshold they are
+ * not even generated into memory but written to the client while they are
+ * converted, see {@link #isStreamed(CachedPad, String)}.
+ * <p>
+ * Pads are downloaded asynchronously through the {@link UpstreamClient}. If
+ * several requests ask for the same pad while it is being downloaded, only the
+ * first one actually downloads and parses it; the others wait for and share
+ * its result.
+ */
+public class ModelCache {
+
+	/**
+	 * Default time to live of a cached pad, in seconds. Can be set via the
+	 * system property <code>rdfpad.cache.ttl</code>.
+	 */
+	public static final long DEFAULT_TTL = 300;
+
+	/**
+	 * Default heap budget of the cache, in megabytes. Can be set via the system
+	 * property <code>rdfpad.cache.size</code>.
+	 */
+	public static final long DEFAULT_SIZE = 64;
+
+	/**
+	 * Default size from which Turtle and N-Triples are streamed rather than
+	 * cached, in kilobytes of pad contents. Can be set via the system property
+	 * <code>rdfpad.stream.threshold</code>.
+	 */
+	public static final long DEFAULT_STREAM_THRESHOLD = 256;
+
+	/**
+	 * Default time after its expiry during which a pad is served while it is
+	 * downloaded again, in seconds. Can be set via the system property
+	 * <code>rdfpad.cache.stale</code>.
+	 */
+	public static final long DEFAULT_STALE = 60;
+
+	/**
+	 * Default time after its expiry during which a pad is served if it cannot
+	 * be downloaded again, in seconds. Can be set via the system property
+	 * <code>rdfpad.cache.staleiferror</code>.
+	 */
+	public static final long DEFAULT_STALE_IF_ERROR = 86400;
+
+	private final long ttl;
+	private final long stale;
+	private final long staleIfError;
+	private final long maxWeight;
+	private final long streamThreshold;
+	private long weight = 0;
+
+	private final UpstreamClient upstream;
+	private final SnapshotStore snapshots;
+
+	// threads updating the models of changed pads, which the threads of the
+	// HTTP client reporting the downloads must not be held up with:
+	private ThreadPoolExecutor updater;
+
+	// downloads in progress, shared by all requests for the same pad:
+	private final ConcurrentMap<String, PendingLoad> loading = new ConcurrentHashMap<String, PendingLoad>();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong deduplicated = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong restored = new AtomicLong();
+
+	private static final Counter HITS = Metrics.counter(
+			"rdfpad_cache_requests_total",
+			"Pads asked for, by whether they were cached.", "result", "hit");
+	private static final Counter MISSES = Metrics.counter(
+			"rdfpad_cache_requests_total",
+			"Pads asked for, by whether they were cached.", "result", "miss");
+	private static final Counter RESTORES = Metrics.counter(
+			"rdfpad_cache_requests_total",
+			"Pads asked for, by whether they were cached.", "result",
+			"restored");
+	private static final Counter STALE = Metrics.counter(
+			"rdfpad_cache_requests_total",
+			"Pads asked for, by whether they were cached.", "result", "stale");
+	private static final Counter STALE_ON_ERROR = Metrics.counter(
+			"rdfpad_cache_stale_on_error_total",
+			"Expired pads served because they could not be downloaded again.");
+
+	// downloads that revalidate a restored snapshot have nobody waiting:
+	private static final LoadListener REVALIDATION = new LoadListener() {
+		public void loaded(CachedPad pad) {
+		}
+
+		public void failed(Throwable failure) {
+		}
+	};
+
+	// access-ordered, so iteration starts with the least recently used pad:
+	private final LinkedHashMap<String, CachedPad> pads = new LinkedHashMap<String, CachedPad>(
+			16, 0.75f, true);
+
+	/**
+	 * Creates a cache for pads downloaded with the given client, configured
+	 * from the system properties
+	 * <code>rdfpad.cache.ttl</code> (seconds),
+	 * <code>rdfpad.cache.size</code> (megabytes),
+	 * <code>rdfpad.stream.threshold</code> (kilobytes),
+	 * <code>rdfpad.cache.stale</code> and
+	 * <code>rdfpad.cache.staleiferror</code> (seconds).
+	 */
+	public ModelCache(UpstreamClient upstream) {
+		this(upstream, null);
+	}
+
+	/**
+	 * Creates a cache for pads downloaded with the given client that falls
+	 * back on snapshots from the given store, configured from the system
+	 * properties as above.
+	 *
+	 * @param upstream
+	 * @param snapshots
+	 *            where pads are saved to and restored from after a restart,
+	 *            or null
+	 */
+	public ModelCache(UpstreamClient upstream, SnapshotStore snapshots) {
+		this(upstream, snapshots, Long.getLong("rdfpad.cache.ttl",
+				DEFAULT_TTL) * 1000, Long.getLong("rdfpad.cache.size",
+				DEFAULT_SIZE) * 1024 * 1024, Long.getLong(
+				"rdfpad.stream.threshold", DEFAULT_STREAM_THRESHOLD) * 1024,
+				Long.getLong("rdfpad.cache.stale", DEFAULT_STALE) * 1000, Long
+						.getLong("rdfpad.cache.staleiferror",
+								DEFAULT_STALE_IF_ERROR) * 1000);
+	}
+
+	/**
+	 * @param upstream
+	 *            the client pads are downloaded with
+	 * @param ttl
+	 *            time to live of an entry, in milliseconds
+	 * @param maxWeight
+	 *            estimated heap budget, in bytes
+	 */
+	public ModelCache(UpstreamClient upstream, long ttl, long maxWeight) {
+		this(upstream, ttl, maxWeight, DEFAULT_STREAM_THRESHOLD * 1024);
+	}
+
+	/**
+	 * @param upstream
+	 *            the client pads are downloaded with
+	 * @param ttl
+	 *            time to live of an entry, in milliseconds
+	 * @param maxWeight
+	 *            estimated heap budget, in bytes
+	 * @param streamThreshold
+	 *            size of pad contents from which Turtle and N-Triples are
+	 *            streamed, in bytes
+	 */
+	public ModelCache(UpstreamClient upstream, long ttl, long maxWeight,
+			long streamThreshold) {
+		this(upstream, null, ttl, maxWeight, streamThreshold);
+	}
+
+	/**
+	 * @param upstream
+	 *            the client pads are downloaded with
+	 * @param snapshots
+	 *            where pads are saved to and restored from after a restart,
+	 *            or null
+	 * @param ttl
+	 *            time to live of an entry, in milliseconds
+	 * @param maxWeight
+	 *            estimated heap budget, in bytes
+	 * @param streamThreshold
+	 *            size of pad contents from which Turtle and N-Triples are
+	 *            streamed, in bytes
+	 */
+	public ModelCache(UpstreamClient upstream, SnapshotStore snapshots,
+			long ttl, long maxWeight, long streamThreshold) {
+		this(upstream, snapshots, ttl, maxWeight, streamThreshold,
+				DEFAULT_STALE * 1000, DEFAULT_STALE_IF_ERROR * 1000);
+	}
+
+	/**
+	 * @param upstream
+	 *            the client pads are downloaded with
+	 * @param snapshots
+	 *            where pads are saved to and restored from after a restart,
+	 *            or null
+	 * @param ttl
+	 *            time to live of an entry, in milliseconds
+	 * @param maxWeight
+	 *            estimated heap budget, in bytes
+	 * @param streamThreshold
+	 *            size of pad contents from which Turtle and N-Triples are
+	 *            streamed, in bytes
+	 * @param stale
+	 *            time after its expiry during which a pad is served while it
+	 *            is downloaded again, in milliseconds
+	 * @param staleIfError
+	 *            time after its expiry during which a pad is served if it
+	 *            cannot be downloaded again, in milliseconds
+	 */
+	public ModelCache(UpstreamClient upstream, SnapshotStore snapshots,
+			long ttl, long maxWeight, long streamThreshold, long stale,
+			long staleIfError) {
+		this.upstream = upstream;
+		this.snapshots = snapshots;
+		this.ttl = ttl;
+		this.stale = stale;
+		this.staleIfError = staleIfError;
+		this.maxWeight = maxWeight;
+		this.streamThreshold = streamThreshold;
+	}
+
+	public synchronized void start() {
+		if (updater != null)
+			return;
+		int threads = Runtime.getRuntime().availableProcessors();
+		updater = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "rdfpad-update-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		updater.allowCoreThreadTimeOut(true);
+	}
+
+	public synchronized void stop() {
+		if (updater != null)
+			updater.shutdownNow();
+		updater = null;
+	}
+
+	/**
+	 * Receives a pad requested via {@link ModelCache#load(String, LoadListener)}.
+	 */
+	public interface LoadListener {
+
+		/**
+		 * Called with the parsed pad.
+		 *
+		 * @param pad
+		 */
+		void loaded(CachedPad pad);
+
+		/**
+		 * Called if the pad could not be downloaded or parsed.
+		 *
+		 * @param failure
+		 */
+		void failed(Throwable failure);
+	}
+
+	/**
+	 * Hands the parsed pad for the given export URL to the listener,
+	 * downloading it only if it is not cached or has expired, and parsing it
+	 * only if its contents have changed since the last download. Concurrent
+	 * requests for the same pad share a single download.
+	 * <p>
+	 * A pad that has not been in the cache since the server started is
+	 * restored from its snapshot if there is one, and downloaded again in
+	 * the background; until the download has completed, the snapshot is
+	 * served as expired, however old it is. The same goes for a pad that has expired only recently, see
+	 * <code>rdfpad.cache.stale</code>. If the download of an expired pad
+	 * fails, the pad is served nevertheless unless it has expired too long
+	 * ago, see <code>rdfpad.cache.staleiferror</code>; use
+	 * {@link #isExpired(CachedPad)} to tell.
+	 * <p>
+	 * If the pad is cached, the listener is called right away; otherwise this
+	 * method returns once the download has been started and the listener is
+	 * called from one of the threads of the {@link UpstreamClient}, or from
+	 * one of the threads updating the models of changed pads.
+	 *
+	 * @param exportURL
+	 * @param listener
+	 */
+	public void load(String exportURL, LoadListener listener) {
+		CachedPad pad = get(exportURL);
+		if (pad != null) {
+			HITS.increment();
+		} else {
+			pad = restore(exportURL);
+			if (pad != null)
+				RESTORES.increment();
+		}
+		if (pad == null) {
+			pad = getRestored(exportURL);
+			if (pad == null)
+				pad = revalidate(exportURL);
+			if (pad != null)
+				STALE.increment();
+		}
+		if (pad != null) {
+			listener.loaded(pad);
+			return;
+		}
+		MISSES.increment();
+		fetch(exportURL, fallBack(exportURL, listener));
+	}
+
+	/**
+	 * Returns the pad for the given export URL if it has expired no longer
+	 * ago than the given time.
+	 *
+	 * @param exportURL
+	 * @param window
+	 *            in milliseconds
+	 * @return the pad, or null
+	 */
+	private synchronized CachedPad getStale(String exportURL, long window) {
+		CachedPad pad = pads.get(exportURL);
+		if (pad == null
+				|| System.currentTimeMillis() - pad.getLoadedAt() > ttl
+						+ window)
+			return null;
+		return pad;
+	}
+
+	/**
+	 * Returns the pad for the given export URL if it has been restored from
+	 * a snapshot and is being downloaded again.
+	 *
+	 * @param exportURL
+	 * @return the restored pad, or null
+	 */
+	private synchronized CachedPad getRestored(String exportURL) {
+		CachedPad pad = pads.get(exportURL);
+		if (pad == null || !pad.isRestored()
+				|| !loading.containsKey(exportURL))
+			return null;
+		return pad;
+	}
+
+	/**
+	 * Starts downloading a pad that has expired recently again, and returns
+	 * it so that it can be served in the meantime.
+	 *
+	 * @param exportURL
+	 * @return the expired pad, or null
+	 */
+	private CachedPad revalidate(String exportURL) {
+		final CachedPad pad = getStale(exportURL, stale);
+		if (pad == null)
+			return null;
+		fetch(exportURL, new LoadListener() {
+			public void loaded(CachedPad fresh) {
+			}
+
+			public void failed(Throwable failure) {
+				pad.setRevalidationFailed();
+			}
+		});
+		return pad;
+	}
+
+	/**
+	 * Wraps a listener waiting for the download of a pad so that it is handed
+	 * the expired pad if the download fails, unless that has expired too long
+	 * ago.
+	 *
+	 * @param exportURL
+	 * @param listener
+	 * @return
+	 */
+	private LoadListener fallBack(String exportURL, final LoadListener listener) {
+		final CachedPad pad = getStale(exportURL, staleIfError);
+		if (pad == null)
+			return listener;
+		return new LoadListener() {
+			public void loaded(CachedPad fresh) {
+				listener.loaded(fresh);
+			}
+
+			public void failed(Throwable failure) {
+				if (!(failure instanceof IOException)) {
+					listener.failed(failure);
+					return;
+				}
+				STALE_ON_ERROR.increment();
+				pad.setRevalidationFailed();
+				listener.loaded(pad);
+			}
+		};
+	}
+
+	/**
+	 * Puts the snapshot of a pad into the cache if the pad is not in it at
+	 * all, and starts revalidating it against the etherpad.
+	 *
+	 * @param exportURL
+	 * @return the restored pad, or null
+	 */
+	private CachedPad restore(String exportURL) {
+		if (snapshots == null)
+			return null;
+		synchronized (this) {
+			if (pads.containsKey(exportURL))
+				return null;
+		}
+		SnapshotStore.Snapshot snapshot = snapshots.get(exportURL);
+		if (snapshot == null)
+			return null;
+		// the pad keeps the time of the snapshot, so that it is served as
+		// expired until the download has completed:
+		CachedPad pad = new CachedPad(exportURL, snapshot.getContent(),
+				snapshot.getContentHash(), snapshot.getSavedAt());
+		pad.setRestored();
+		if (snapshot.getNTriples() != null)
+			pad.addWeight(pad.addSerialization("N-TRIPLE", snapshot
+					.getNTriples()));
+		synchronized (this) {
+			if (pads.containsKey(exportURL))
+				return null;
+			put(pad);
+		}
+		restored.incrementAndGet();
+		fetch(exportURL, REVALIDATION);
+		return pad;
+	}
+
+	/**
+	 * Downloads the pad for the given export URL even if it is cached and
+	 * hands it to the listener once it has been stored in the cache; used to
+	 * keep pads fresh in the background. If the download fails, the cached
+	 * pad is left alone. A download already in progress is shared, as with
+	 * {@link #load(String, LoadListener)}.
+	 *
+	 * @param exportURL
+	 * @param listener
+	 */
+	public void refresh(String exportURL, LoadListener listener) {
+		fetch(exportURL, listener);
+	}
+
+	private void fetch(String exportURL, LoadListener listener) {
+		PendingLoad pending = new PendingLoad(exportURL);
+		PendingLoad inFlight = loading.putIfAbsent(exportURL, pending);
+		if (inFlight != null) {
+			deduplicated.incrementAndGet();
+			inFlight.addListener(listener);
+			return;
+		}
+		loads.incrementAndGet();
+		pending.addListener(listener);
+		upstream.fetch(exportURL, pending);
+	}
+
+	/**
+	 * Returns the parsed pad for the given export URL, waiting for the
+	 * download if it is not cached.
+	 *
+	 * @param exportURL
+	 * @return
+	 * @throws IOException
+	 * @see #load(String, LoadListener)
+	 */
+	public CachedPad load(String exportURL) throws IOException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final Object[] result = new Object[1];
+		load(exportURL, new LoadListener() {
+			public void loaded(CachedPad pad) {
+				result[0] = pad;
+				done.countDown();
+			}
+
+			public void failed(Throwable failure) {
+				result[0] = failure;
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while loading "
+					+ exportURL);
+		}
+		if (result[0] instanceof CachedPad)
+			return (CachedPad) result[0];
+		if (result[0] instanceof IOException)
+			throw (IOException) result[0];
+		if (result[0] instanceof RuntimeException)
+			throw (RuntimeException) result[0];
+		throw new IOException((Throwable) result[0]);
+	}
+
+	/**
+	 * Returns the time to live of a cached pad, in milliseconds.
+	 *
+	 * @return
+	 */
+	public long getTTL() {
+		return ttl;
+	}
+
+	/**
+	 * Returns the number of downloads started by
+	 * {@link #load(String, LoadListener)} and
+	 * {@link #refresh(String, LoadListener)}.
+	 *
+	 * @return
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * Returns the number of requests that joined a download already in
+	 * progress instead of starting their own.
+	 *
+	 * @return
+	 */
+	public long getDeduplicated() {
+		return deduplicated.get();
+	}
+
+	/**
+	 * Returns the number of downloaded pads whose model has been updated from
+	 * that of the previous contents instead of being parsed in full.
+	 *
+	 * @return
+	 */
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	/**
+	 * Returns the number of pads restored from their snapshots.
+	 *
+	 * @return
+	 */
+	public long getRestored() {
+		return restored.get();
+	}
+
+	/**
+	 * Puts downloaded pad contents into the cache, reusing an expired copy
+	 * with the same contents together with its model and serializations if
+	 * there is one. If the contents have changed and the previous model has
+	 * been built, it is updated with the changed statements. Changed contents
+	 * are saved as a snapshot.
+	 *
+	 * @param exportURL
+	 * @param content
+	 * @return
+	 */
+	private CachedPad store(String exportURL, byte[] content) {
+		String hash = hash(content);
+
+		CachedPad stale;
+		synchronized (this) {
+			stale = pads.get(exportURL);
+		}
+		CachedPad pad;
+		if (stale != null && stale.getContentHash().equals(hash)) {
+			pad = stale.renew();
+		} else {
+			pad = null;
+			if (stale != null) {
+				try {
+					pad = stale.update(content, hash);
+				} catch (RuntimeException e) {
+					// parse the new contents in full when asked to
+				}
+			}
+			if (pad != null)
+				updates.incrementAndGet();
+			else
+				pad = new CachedPad(exportURL, content, hash);
+		}
+		put(pad);
+		if (snapshots != null)
+			snapshots.save(pad);
+		return pad;
+	}
+
+	/**
+	 * Returns the updater threads if downloaded contents of the given pad
+	 * may have to be turned into an updated model, or null if storing them
+	 * is quick.
+	 *
+	 * @param exportURL
+	 * @return
+	 */
+	private synchronized ThreadPoolExecutor getUpdater(String exportURL) {
+		CachedPad stale = pads.get(exportURL);
+		return stale != null && stale.isParsed() ? updater : null;
+	}
+
+	/**
+	 * A download in progress, together with the listeners waiting for it.
+	 */
+	private class PendingLoad implements UpstreamClient.Callback {
+
+		private final String exportURL;
+		private final List<LoadListener> listeners = new ArrayList<LoadListener>();
+		private boolean done = false;
+		private CachedPad pad;
+		private Throwable failure;
+
+		PendingLoad(String exportURL) {
+			this.exportURL = exportURL;
+		}
+
+		void addListener(LoadListener listener) {
+			synchronized (this) {
+				if (!done) {
+					listeners.add(listener);
+					return;
+				}
+			}
+			tell(listener);
+		}
+
+		public void completed(final byte[] content) {
+			// storing may mean updating the model of the pad, which is left
+			// to the updater threads:
+			ThreadPoolExecutor updater = getUpdater(exportURL);
+			if (updater != null) {
+				try {
+					updater.execute(new Runnable() {
+						public void run() {
+							complete(content);
+						}
+					});
+					return;
+				} catch (RejectedExecutionException e) {
+					// shutting down, store it right away
+				}
+			}
+			complete(content);
+		}
+
+		private void complete(byte[] content) {
+			try {
+				finish(store(exportURL, content), null);
+			} catch (RuntimeException e) {
+				finish(null, e);
+			}
+		}
+
+		public void failed(Throwable failure) {
+			finish(null, failure);
+		}
+
+		private void finish(CachedPad pad, Throwable failure) {
+			loading.remove(exportURL, this);
+			List<LoadListener> waiting;
+			synchronized (this) {
+				this.pad = pad;
+				this.failure = failure;
+				done = true;
+				waiting = new ArrayList<LoadListener>(listeners);
+				listeners.clear();
+			}
+			for (LoadListener listener : waiting)
+				tell(listener);
+		}
+
+		private void tell(LoadListener listener) {
+			if (pad != null)
+				listener.loaded(pad);
+			else
+				listener.failed(failure);
+		}
+	}
+
+	/**
+	 * Returns the model of a pad, parsing the pad the first time it is asked
+	 * for and adding the model to the weight of the cache. A pad that cannot
+	 * be parsed is dropped from the cache, so that the next request downloads
+	 * it again.
+	 *
+	 * @param pad
+	 * @return
+	 * @throws com.hp.hpl.jena.shared.JenaException
+	 *             if the pad is not valid Turtle
+	 */
+	public Model getModel(CachedPad pad) {
+		long added;
+		try {
+			added = pad.parse();
+		} catch (RuntimeException e) {
+			drop(pad);
+			throw e;
+		}
+		grown(pad, added);
+		return pad.getModel();
+	}
+
+	/**
+	 * Returns the given serialization of a pad as UTF-8 bytes, generating it
+	 * only the first time it is asked for. Turtle and N-Triples are converted
+	 * straight from the pad contents, everything else is written by Jena.
+	 *
+	 * @param pad
+	 * @param lang
+	 *            the Jena name of the serialization, e.g. "RDF/XML-ABBREV"
+	 * @return
+	 * @throws IOException
+	 * @throws com.hp.hpl.jena.shared.JenaException
+	 *             if the pad is not valid Turtle
+	 */
+	public byte[] getSerialization(CachedPad pad, String lang)
+			throws IOException {
+		byte[] bytes = pad.getSerialization(lang);
+		if (bytes != null)
+			return bytes;
+
+		if (TurtleStreamer.supports(lang) && pad.isTurtle()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					pad.getContentLength() + pad.getContentLength() / 2);
+			stream(pad, lang, out);
+			bytes = out.toByteArray();
+		} else {
+			Model model = getModel(pad);
+			long start = System.nanoTime();
+			bytes = serialize(model, lang);
+			serializeTime(lang).recordSince(start);
+		}
+		grown(pad, pad.addSerialization(lang, bytes));
+		if (snapshots != null && lang.equals("N-TRIPLE"))
+			snapshots.save(pad);
+		return pad.getSerialization(lang);
+	}
+
+	/**
+	 * Returns the given serialization of a pad compressed with gzip,
+	 * compressing it only the first time it is asked for. The compressed
+	 * bytes are kept next to the uncompressed ones.
+	 *
+	 * @param pad
+	 * @param lang
+	 *            the Jena name of the serialization, e.g. "RDF/XML-ABBREV"
+	 * @return
+	 * @throws IOException
+	 * @see #getSerialization(CachedPad, String)
+	 */
+	public byte[] getCompressedSerialization(CachedPad pad, String lang)
+			throws IOException {
+		byte[] bytes = pad.getSerialization(lang + CachedPad.GZIP);
+		if (bytes != null)
+			return bytes;
+
+		byte[] uncompressed = getSerialization(pad, lang);
+		long start = System.nanoTime();
+		bytes = Gzip.compress(uncompressed);
+		serializeTime(lang + CachedPad.GZIP).recordSince(start);
+		grown(pad, pad.addSerialization(lang + CachedPad.GZIP, bytes));
+		return pad.getSerialization(lang + CachedPad.GZIP);
+	}
+
+	/**
+	 * Checks whether the given serialization of a pad should be written to
+	 * the client with {@link #stream(CachedPad, String, OutputStream)} while
+	 * it is generated, rather than taken from
+	 * {@link #getSerialization(CachedPad, String)}. This is the case for
+	 * Turtle and N-Triples of Turtle and N-Triples pads larger than the
+	 * stream threshold, unless the serialization is cached already.
+	 *
+	 * @param pad
+	 * @param lang
+	 * @return
+	 */
+	public boolean isStreamed(CachedPad pad, String lang) {
+		return TurtleStreamer.supports(lang) && pad.isTurtle()
+				&& pad.getContentLength() > streamThreshold
+				&& pad.getSerialization(lang) == null;
+	}
+
+	/**
+	 * Writes the Turtle or N-Triples serialization of a pad to the given
+	 * stream while converting it from the contents of a Turtle or N-Triples
+	 * pad, see {@link CachedPad#isTurtle()}. A pad that turns out not to be
+	 * valid Turtle is dropped from the cache.
+	 *
+	 * @param pad
+	 * @param lang
+	 *            "TURTLE" or "N-TRIPLE"
+	 * @param out
+	 * @throws IOException
+	 * @throws com.hp.hpl.jena.shared.JenaException
+	 *             if the pad is not valid Turtle; the triples before the
+	 *             error may have been written by then
+	 */
+	public void stream(CachedPad pad, String lang, OutputStream out)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			TurtleStreamer.write(pad.getContent(), pad.getExportURL(), lang,
+					out);
+			serializeTime(lang).recordSince(start);
+		} catch (RuntimeException e) {
+			drop(pad);
+			throw e;
+		}
+	}
+
+	private static Histogram serializeTime(String lang) {
+		return Metrics.histogram("rdfpad_serialize_seconds",
+				"Time to write a serialization of a pad, by format; "
+						+ "streamed ones include sending them.", "format",
+				lang);
+	}
+
+	/**
+	 * Adds to the weight of a pad and, if the pad is cached, to that of the
+	 * cache; a pad that has grown too heavy to be cached is dropped.
+	 */
+	private synchronized void grown(CachedPad pad, long added) {
+		if (added == 0)
+			return;
+		boolean cached = pads.get(pad.getExportURL()) == pad;
+		pad.addWeight(added);
+		if (!cached)
+			return;
+		weight += added;
+		if (pad.getWeight() > maxWeight / 4)
+			remove(pad.getExportURL());
+		else
+			evict();
+	}
+
+	private synchronized void drop(CachedPad pad) {
+		if (pads.get(pad.getExportURL()) == pad)
+			remove(pad.getExportURL());
+	}
+
+	/**
+	 * Writes a model in the given serialization into UTF-8 bytes, holding a
+	 * read lock on the model in case it is being updated.
+	 *
+	 * @param model
+	 * @param lang
+	 *            the Jena name of the serialization, e.g. "RDF/XML-ABBREV"
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] serialize(Model model, String lang)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		model.enterCriticalSection(Lock.READ);
+		try {
+			model.write(writer, lang);
+		} finally {
+			model.leaveCriticalSection();
+		}
+		writer.flush();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the cached pad for the given export URL, or null if there is
+	 * none or it has expired.
+	 *
+	 * @param exportURL
+	 * @return
+	 */
+	public synchronized CachedPad get(String exportURL) {
+		CachedPad pad = pads.get(exportURL);
+		if (pad != null && isExpired(pad))
+			return null;
+		return pad;
+	}
+
+	/**
+	 * Adds a pad to the cache, replacing any older version and evicting other
+	 * pads as needed to stay within the heap budget.
+	 *
+	 * @param pad
+	 */
+	public synchronized void put(CachedPad pad) {
+		remove(pad.getExportURL());
+		if (pad.getWeight() > maxWeight / 4)
+			return;
+
+		pads.put(pad.getExportURL(), pad);
+		weight += pad.getWeight();
+		evict();
+	}
+
+	private void evict() {
+		// drop expired pads first, then the least recently used ones:
+		for (Iterator<CachedPad> it = pads.values().iterator(); it.hasNext()
+				&& weight > maxWeight;) {
+			CachedPad p = it.next();
+			if (isExpired(p)) {
+				it.remove();
+				weight -= p.getWeight();
+			}
+		}
+		for (Iterator<CachedPad> it = pads.values().iterator(); it.hasNext()
+				&& weight > maxWeight;) {
+			CachedPad p = it.next();
+			it.remove();
+			weight -= p.getWeight();
+		}
+	}
+
+	/**
+	 * Drops the pad for the given export URL from the cache.
+	 *
+	 * @param exportURL
+	 */
+	public synchronized void remove(String exportURL) {
+		CachedPad old = pads.remove(exportURL);
+		if (old != null)
+			weight -= old.getWeight();
+	}
+
+	/**
+	 * Returns the number of cached pads, including expired ones that have
+	 * not been evicted yet.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return pads.size();
+	}
+
+	/**
+	 * Returns the estimated heap currently taken by the cached pads, in bytes.
+	 *
+	 * @return
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns true if the given pad has outlived its time to live, i.e. it is
+	 * served stale.
+	 *
+	 * @param pad
+	 * @return
+	 */
+	public boolean isExpired(CachedPad pad) {
+		return System.currentTimeMillis() - pad.getLoadedAt() > ttl;
+	}
+
+	private static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder hex = new StringBuilder(2 * digest.length);
+			for (byte b : digest)
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+						Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,857 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.ErrorHandlerFactory;
+import org.openjena.riot.RiotException;
+import org.openjena.riot.RiotReader;
+import org.openjena.riot.lang.LangRIOT;
+import org.openjena.riot.system.PrefixMap;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.iri.IRI;
+import com.hp.hpl.jena.n3.turtle.TurtleEventHandler;
+import com.hp.hpl.jena.n3.turtle.TurtleParseException;
+import com.hp.hpl.jena.n3.turtle.parser.ParseException;
+import com.hp.hpl.jena.n3.turtle.parser.TokenMgrError;
+import com.hp.hpl.jena.n3.turtle.parser.TurtleParser;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * The parsed form of a pad: its Jena model, its subjects in sorted order and
+ * its namespace prefixes, plus an estimate of the heap they take up. The
+ * model is backed by a read-only {@link CompactGraph}, into which the
+ * triples are moved once the pad has been parsed.
+ * <p>
+ * Pads are usually edited a few statements at a time, so the model also
+ * remembers which statement of the pad text produced which triples. When new
+ * contents of the pad come in, {@link #update(String, byte[])} splits them
+ * into statements again, matches them against the previous ones and only
+ * parses those that are new; a new model is built from the previous one
+ * without the triples of statements that are gone and with those of new
+ * statements. This only
+ * works if the prefixes stay the same, there is no <code>@base</code> and
+ * the new statements do not use blank node labels, which could refer to
+ * blank nodes of unchanged statements; otherwise the pad is parsed in full.
+ * <p>
+ * Pads in N3 are read by Jena's N3 reader, which accepts the Turtle subset
+ * of N3 only and names the first construct beyond it in its error; pads in
+ * N-Quads and TriG are read by RIOT, dropping the graph names, i.e. the model
+ * is the union of their graphs. These pads are always parsed in full.
+ */
+class PadModel {
+
+	// cost of a subject in the sorted subject array:
+	private static final long SUBJECT_WEIGHT = 8;
+
+	// fixed cost of a statement in the index, on top of its triples:
+	private static final long BLOCK_WEIGHT = 40;
+
+	// the tab width the Turtle parser uses when counting columns:
+	private static final int TAB_SIZE = 8;
+
+	// URIs sort before blank nodes, both by their string form:
+	static final Comparator<Resource> SUBJECT_ORDER = new Comparator<Resource>() {
+		public int compare(Resource a, Resource b) {
+			if (a.isAnon() != b.isAnon())
+				return a.isAnon() ? 1 : -1;
+			return a.toString().compareTo(b.toString());
+		}
+	};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	final Model model;
+	final Resource[] subjects;
+	final Map<String, String> prefixes;
+	final long weight;
+
+	// the directives and statements of the pad text, null if the model cannot
+	// be updated incrementally:
+	private final String[] directives;
+	private final Block[] blocks;
+
+	// triples stated more than once, with the number of statements they
+	// occur in; null if there are none:
+	private final Map<Triple, Integer> duplicates;
+
+	/**
+	 * A statement of the pad text, known by a 64 bit hash of its text rather
+	 * than the text itself, together with the triples parsed from it, given
+	 * by the ids of their terms in the dictionary of the graph, three per
+	 * triple.
+	 */
+	private static class Block {
+		final long hash;
+		final int[] triples;
+
+		Block(long hash, int[] triples) {
+			this.hash = hash;
+			this.triples = triples;
+		}
+
+		int size() {
+			return triples.length / 3;
+		}
+
+		Triple get(TermDictionary dictionary, int i) {
+			return new Triple(dictionary.get(triples[3 * i]), dictionary
+					.get(triples[3 * i + 1]), dictionary
+					.get(triples[3 * i + 2]));
+		}
+
+		long getWeight() {
+			return BLOCK_WEIGHT + 4 * triples.length;
+		}
+	}
+
+	/**
+	 * Returns the 64 bit FNV-1a hash of a statement.
+	 */
+	private static long hash(String text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static int[] encode(TermDictionary dictionary, List<Triple> triples) {
+		int[] ids = new int[3 * triples.size()];
+		int i = 0;
+		for (Triple triple : triples) {
+			ids[i++] = dictionary.intern(triple.getSubject());
+			ids[i++] = dictionary.intern(triple.getPredicate());
+			ids[i++] = dictionary.intern(triple.getObject());
+		}
+		return ids;
+	}
+
+	private PadModel(Model model, Resource[] subjects,
+			Map<String, String> prefixes, long weight, String[] directives,
+			Block[] blocks, Map<Triple, Integer> duplicates) {
+		this.model = model;
+		this.subjects = subjects;
+		this.prefixes = prefixes;
+		this.weight = weight;
+		this.directives = directives;
+		this.blocks = blocks;
+		this.duplicates = duplicates;
+	}
+
+	/**
+	 * Parses pad contents in the given syntax into a new model.
+	 *
+	 * @param base
+	 *            the base URI, i.e. the export URL of the pad
+	 * @param content
+	 *            the UTF-8 encoded contents
+	 * @param format
+	 *            one of the formats of the {@link TypeDetector}
+	 * @return
+	 * @throws JenaException
+	 *             if the contents are not valid in that syntax
+	 */
+	static PadModel parse(String base, byte[] content, String format) {
+		if (TypeDetector.isTurtle(format))
+			return parse(base, content);
+		Model model = ModelFactory.createDefaultModel();
+		InputStream in = new ByteArrayInputStream(content);
+		if (format.equals(TypeDetector.N3))
+			model.read(in, base, "N3");
+		else
+			readQuads(model, in, base, format);
+		model = compact(model);
+		Resource[] subjects = sortSubjects(model);
+		return new PadModel(model, subjects, getPrefixes(model),
+				getWeight(model) + subjects.length * SUBJECT_WEIGHT, null,
+				null, null);
+	}
+
+	/**
+	 * Reads N-Quads or TriG into a model, dropping the graph names.
+	 */
+	private static void readQuads(Model model, InputStream in, String base,
+			String format) {
+		final Graph graph = model.getGraph();
+		Sink<Quad> sink = new Sink<Quad>() {
+			public void send(Quad quad) {
+				graph.add(quad.asTriple());
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		};
+		LangRIOT parser = format.equals(TypeDetector.TRIG) ? RiotReader
+				.createParserTriG(in, base, sink) : RiotReader
+				.createParserNQuads(in, sink);
+		parser.getProfile().setHandler(
+				ErrorHandlerFactory.errorHandlerNoLogging);
+		try {
+			parser.parse();
+		} catch (RiotException e) {
+			throw new JenaException(e.getMessage(), e);
+		}
+		PrefixMap prefixes = parser.getProfile().getPrologue().getPrefixMap();
+		if (prefixes == null)
+			return;
+		for (Map.Entry<String, IRI> prefix : prefixes.getMapping().entrySet())
+			model.setNsPrefix(prefix.getKey(), prefix.getValue().toString());
+	}
+
+	/**
+	 * Parses Turtle pad contents into a new model.
+	 *
+	 * @param base
+	 *            the base URI, i.e. the export URL of the pad
+	 * @param content
+	 *            the UTF-8 encoded Turtle contents
+	 * @return
+	 * @throws TurtleParseException
+	 *             if the contents are not valid Turtle
+	 */
+	static PadModel parse(String base, byte[] content) {
+		final String text = decode(content);
+		final Statements statements = new Statements(text);
+		final Graph graph = ModelFactory.createDefaultModel().getGraph();
+
+		// the triples of each statement; the parser reports the position of
+		// the token that completed a triple, which lies within its statement:
+		final List<List<Triple>> triples = new ArrayList<List<Triple>>();
+		for (int i = 0; i < statements.size(); i++)
+			triples.add(new ArrayList<Triple>());
+		final boolean[] indexed = { statements.isIncremental()
+				&& !hasUnicodeEscapes(text) };
+
+		parse(base, text, new Handler() {
+			private final Position position = new Position(text);
+			private int block = 0;
+
+			public void triple(int line, int col, Triple triple) {
+				graph.add(triple);
+				if (!indexed[0])
+					return;
+				int offset = position.seek(line, col);
+				while (offset >= 0 && block < statements.size()
+						&& statements.end(block) <= offset)
+					block++;
+				if (offset < 0 || block == statements.size()
+						|| statements.start(block) > offset
+						|| statements.isDirective(block))
+					indexed[0] = false;
+				else
+					triples.get(block).add(triple);
+			}
+
+			public void prefix(int line, int col, String prefix, String iri) {
+				graph.getPrefixMapping().setNsPrefix(prefix, iri);
+			}
+		});
+
+		Model model = compact(ModelFactory.createModelForGraph(graph));
+		Resource[] subjects = sortSubjects(model);
+		long weight = getWeight(model) + subjects.length * SUBJECT_WEIGHT;
+		if (!indexed[0])
+			return new PadModel(model, subjects, getPrefixes(model), weight,
+					null, null, null);
+
+		TermDictionary dictionary = ((CompactGraph) model.getGraph())
+				.getDictionary();
+		List<Block> blocks = new ArrayList<Block>();
+		Map<Triple, Integer> counts = new HashMap<Triple, Integer>();
+		for (int i = 0; i < statements.size(); i++) {
+			if (statements.isDirective(i))
+				continue;
+			List<Triple> stated = triples.get(i);
+			Block block = new Block(hash(statements.text(i)), encode(
+					dictionary, stated));
+			for (Triple triple : stated) {
+				Integer count = counts.get(triple);
+				counts.put(triple, count == null ? 1 : count + 1);
+			}
+			blocks.add(block);
+			weight += block.getWeight();
+		}
+		Map<Triple, Integer> duplicates = null;
+		if (counts.size() != graph.size())
+			return new PadModel(model, subjects, getPrefixes(model), weight,
+					null, null, null);
+		for (Map.Entry<Triple, Integer> count : counts.entrySet()) {
+			if (count.getValue() > 1) {
+				if (duplicates == null)
+					duplicates = new HashMap<Triple, Integer>();
+				duplicates.put(dictionary.canonical(count.getKey()), count
+						.getValue());
+			}
+		}
+		return new PadModel(model, subjects, getPrefixes(model), weight,
+				statements.getDirectives(), blocks.toArray(new Block[blocks
+						.size()]), duplicates);
+	}
+
+	/**
+	 * Applies new contents of the pad to this model by parsing only the
+	 * statements that are not in the previous contents. On success a new
+	 * instance with a new model is returned; this instance and its model are
+	 * left as they are, so that requests using them are not affected.
+	 *
+	 * @param base
+	 *            the base URI, i.e. the export URL of the pad
+	 * @param content
+	 *            the new UTF-8 encoded Turtle contents
+	 * @return the updated model, or null if the contents have to be parsed in
+	 *         full, e.g. because the prefixes have changed or the new
+	 *         statements are not valid Turtle on their own, or because the
+	 *         dictionary of the model is no longer the current one
+	 */
+	PadModel update(String base, byte[] content) {
+		if (blocks == null)
+			return null;
+		// new terms go into the current dictionary only, so that a pad that
+		// is edited all the time does not keep growing an old one:
+		if (((CompactGraph) model.getGraph()).getDictionary() != TermDictionary
+				.current())
+			return null;
+		String text;
+		try {
+			text = decode(content);
+		} catch (JenaException e) {
+			return null;
+		}
+		Statements statements = new Statements(text);
+		if (!statements.isIncremental()
+				|| !Arrays.equals(directives, statements.getDirectives()))
+			return null;
+
+		// match the new statements against the previous ones by their text:
+		Map<Long, List<Block>> unmatched = new HashMap<Long, List<Block>>();
+		for (Block block : blocks) {
+			List<Block> same = unmatched.get(block.hash);
+			if (same == null)
+				unmatched.put(block.hash, same = new ArrayList<Block>(1));
+			same.add(block);
+		}
+		Block[] updated = new Block[statements.size() - directives.length];
+		List<Integer> added = new ArrayList<Integer>();
+		long changed = 0;
+		for (int i = directives.length, j = 0; i < statements.size(); i++, j++) {
+			String statement = statements.text(i);
+			long hash = hash(statement);
+			List<Block> same = unmatched.get(hash);
+			if (same != null && !same.isEmpty()) {
+				updated[j] = same.remove(same.size() - 1);
+				continue;
+			}
+			if (statement.indexOf("_:") >= 0)
+				return null;
+			changed += statement.length();
+			updated[j] = new Block(hash, null);
+			added.add(j);
+		}
+		// parsing everything at once is cheaper than most of it piecewise:
+		if (changed > text.length() / 2)
+			return null;
+
+		TermDictionary dictionary = ((CompactGraph) model.getGraph())
+				.getDictionary();
+		StringBuilder prologue = new StringBuilder();
+		for (String directive : directives)
+			prologue.append(directive).append('\n');
+		for (int j : added) {
+			try {
+				updated[j] = new Block(updated[j].hash, encode(dictionary,
+						parseStatement(base, prologue
+								+ statements.text(directives.length + j))));
+			} catch (JenaException e) {
+				return null;
+			}
+		}
+		List<Block> removed = new ArrayList<Block>();
+		for (List<Block> gone : unmatched.values())
+			removed.addAll(gone);
+
+		return apply(updated, added, removed);
+	}
+
+	private PadModel apply(Block[] updated, List<Integer> added,
+			List<Block> removed) {
+		CompactGraph graph = (CompactGraph) model.getGraph();
+		TermDictionary dictionary = graph.getDictionary();
+		Map<Triple, Integer> duplicates = this.duplicates == null ? null
+				: new HashMap<Triple, Integer>(this.duplicates);
+
+		// whether the subjects of the changed triples had any triples before:
+		Map<Node, Boolean> touched = new HashMap<Node, Boolean>();
+		for (Block block : removed)
+			touch(graph, dictionary, touched, block);
+		for (int j : added)
+			touch(graph, dictionary, touched, updated[j]);
+
+		Set<Triple> deleted = new HashSet<Triple>();
+		Set<Triple> inserted = new HashSet<Triple>();
+		long weight = this.weight - graph.getWeight();
+		for (Block block : removed) {
+			weight -= block.getWeight();
+			for (int i = 0; i < block.size(); i++) {
+				Triple triple = block.get(dictionary, i);
+				Integer count = duplicates == null ? null : duplicates
+						.get(triple);
+				if (count == null) {
+					deleted.add(triple);
+				} else if (count > 2) {
+					duplicates.put(triple, count - 1);
+				} else {
+					duplicates.remove(triple);
+				}
+			}
+		}
+		for (int j : added) {
+			for (int i = 0; i < updated[j].size(); i++) {
+				Triple triple = updated[j].get(dictionary, i);
+				if (inserted.contains(triple)
+						|| (!deleted.contains(triple) && graph
+								.contains(triple))) {
+					if (duplicates == null)
+						duplicates = new HashMap<Triple, Integer>();
+					Integer count = duplicates.get(triple);
+					duplicates.put(triple, count == null ? 2 : count + 1);
+				} else if (!deleted.remove(triple)) {
+					inserted.add(triple);
+				}
+			}
+			weight += updated[j].getWeight();
+		}
+		if (duplicates != null && duplicates.isEmpty())
+			duplicates = null;
+		CompactGraph changed = graph.update(deleted, inserted);
+		Model model = ModelFactory.createModelForGraph(changed);
+		weight += changed.getWeight();
+
+		// subjects that are gone or new:
+		Set<Node> gone = new HashSet<Node>();
+		List<Resource> appeared = new ArrayList<Resource>();
+		for (Map.Entry<Node, Boolean> subject : touched.entrySet()) {
+			boolean present = changed.contains(subject.getKey(), Node.ANY,
+					Node.ANY);
+			if (subject.getValue() && !present)
+				gone.add(subject.getKey());
+			else if (!subject.getValue() && present)
+				appeared.add((Resource) model.asRDFNode(subject.getKey()));
+		}
+		Resource[] subjects = merge(model, this.subjects, gone, appeared);
+		weight += (subjects.length - this.subjects.length) * SUBJECT_WEIGHT;
+		return new PadModel(model, subjects, prefixes, weight, directives,
+				updated, duplicates);
+	}
+
+	private static void touch(Graph graph, TermDictionary dictionary,
+			Map<Node, Boolean> touched, Block block) {
+		for (int i = 0; i < block.size(); i++) {
+			Node subject = dictionary.get(block.triples[3 * i]);
+			if (!touched.containsKey(subject))
+				touched.put(subject, graph.contains(subject, Node.ANY,
+						Node.ANY));
+		}
+	}
+
+	/**
+	 * Removes and adds subjects to a sorted subject array. All subjects are
+	 * taken over to the given model, so that the array does not keep the
+	 * previous model alive.
+	 */
+	private static Resource[] merge(Model model, Resource[] subjects,
+			Set<Node> gone, List<Resource> appeared) {
+		Collections.sort(appeared, SUBJECT_ORDER);
+		Resource[] merged = new Resource[subjects.length - gone.size()
+				+ appeared.size()];
+		int i = 0, j = 0, k = 0;
+		while (i < subjects.length || j < appeared.size()) {
+			if (i < subjects.length && gone.contains(subjects[i].asNode())) {
+				i++;
+			} else if (j == appeared.size()
+					|| (i < subjects.length && SUBJECT_ORDER.compare(
+							subjects[i], appeared.get(j)) <= 0)) {
+				merged[k++] = (Resource) model.asRDFNode(subjects[i++]
+						.asNode());
+			} else {
+				merged[k++] = appeared.get(j++);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Parses a single statement, preceded by the directives of the pad, into
+	 * a list of triples.
+	 */
+	private static List<Triple> parseStatement(String base, String text) {
+		final List<Triple> triples = new ArrayList<Triple>();
+		parse(base, text, new Handler() {
+			public void triple(int line, int col, Triple triple) {
+				triples.add(triple);
+			}
+
+			public void prefix(int line, int col, String prefix, String iri) {
+			}
+		});
+		return triples;
+	}
+
+	private static void parse(String base, String text, Handler handler) {
+		TurtleParser parser = new TurtleParser(new StringReader(text));
+		parser.setEventHandler(handler);
+		parser.setBaseURI(base);
+		try {
+			parser.parse();
+		} catch (ParseException e) {
+			throw new TurtleParseException(e.getMessage());
+		} catch (TokenMgrError e) {
+			throw new TurtleParseException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Receives triples and prefixes from the parser; formulae are N3 only.
+	 */
+	private static abstract class Handler implements TurtleEventHandler {
+		public void startFormula(int line, int col) {
+			throw new TurtleParseException("Formulae are not Turtle");
+		}
+
+		public void endFormula(int line, int col) {
+		}
+	}
+
+	private static String decode(byte[] content) {
+		try {
+			return UTF8.newDecoder().decode(ByteBuffer.wrap(content))
+					.toString();
+		} catch (CharacterCodingException e) {
+			throw new TurtleParseException("Contents are not UTF-8: "
+					+ e.getMessage());
+		}
+	}
+
+	// the parser unescapes \\u sequences before it counts columns, which
+	// would put the positions of the following triples off:
+	private static boolean hasUnicodeEscapes(String text) {
+		return text.indexOf("\\u") >= 0 || text.indexOf("\\U") >= 0;
+	}
+
+	/**
+	 * Maps the line and column numbers of the parser back to offsets in the
+	 * text, counting lines and expanding tabs the way the parser does. Only
+	 * moves forward, as the parser reports triples in order.
+	 */
+	private static class Position {
+		private final String text;
+		private int offset = -1;
+		private int line = 1;
+		private int column = 0;
+		private boolean cr;
+		private boolean lf;
+
+		Position(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * Returns the offset of the character at the given position, or -1
+		 * if there is none at or after the current one.
+		 */
+		int seek(int line, int column) {
+			while (this.line < line
+					|| (this.line == line && this.column < column)) {
+				if (offset + 1 >= text.length())
+					return -1;
+				next(text.charAt(++offset));
+			}
+			return this.line == line && this.column == column ? offset : -1;
+		}
+
+		private void next(char c) {
+			column++;
+			if (lf) {
+				lf = false;
+				line++;
+				column = 1;
+			} else if (cr) {
+				cr = false;
+				if (c == '\n') {
+					lf = true;
+				} else {
+					line++;
+					column = 1;
+				}
+			}
+			if (c == '\r') {
+				cr = true;
+			} else if (c == '\n') {
+				lf = true;
+			} else if (c == '\t') {
+				column--;
+				column += TAB_SIZE - (column % TAB_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * Splits Turtle text into its directives and statements, each ending
+	 * with a dot outside of any string, IRI, comment, blank node or
+	 * collection. Text that does not split cleanly ends up in fewer, larger
+	 * statements, which is harmless: they are only ever parsed as a whole.
+	 */
+	private static class Statements {
+		private final String text;
+		private final List<int[]> bounds = new ArrayList<int[]>();
+		private int directives;
+		private boolean incremental = true;
+
+		Statements(String text) {
+			this.text = text;
+			int n = text.length();
+			int start = -1;
+			int depth = 0;
+			for (int i = 0; i < n;) {
+				char c = text.charAt(i);
+				if (start < 0) {
+					if (isWhitespace(c)) {
+						i++;
+						continue;
+					}
+					if (c != '#')
+						start = i;
+				}
+				switch (c) {
+				case '#':
+					while (i < n && text.charAt(i) != '\n'
+							&& text.charAt(i) != '\r')
+						i++;
+					break;
+				case '<':
+					i++;
+					while (i < n && text.charAt(i) != '>'
+							&& !isWhitespace(text.charAt(i)))
+						i++;
+					if (i < n && text.charAt(i) == '>')
+						i++;
+					break;
+				case '"':
+				case '\'':
+					i = skipString(text, i, c);
+					break;
+				case '[':
+				case '(':
+					depth++;
+					i++;
+					break;
+				case ']':
+				case ')':
+					depth--;
+					i++;
+					break;
+				case '.':
+					i++;
+					if (depth == 0
+							&& (i == n || isWhitespace(text.charAt(i)) || text
+									.charAt(i) == '#')) {
+						add(start, i);
+						start = -1;
+					}
+					break;
+				default:
+					i++;
+				}
+			}
+			if (start >= 0)
+				add(start, n);
+		}
+
+		private void add(int start, int end) {
+			if (text.startsWith("@prefix", start)) {
+				// directives must come first and must not redefine prefixes:
+				if (directives < bounds.size())
+					incremental = false;
+				for (int i = 0; i < directives; i++)
+					if (getPrefix(start(i)).equals(getPrefix(start)))
+						incremental = false;
+				directives++;
+			} else if (text.startsWith("@base", start)) {
+				incremental = false;
+				directives++;
+			}
+			bounds.add(new int[] { start, end });
+		}
+
+		private String getPrefix(int start) {
+			int from = start + "@prefix".length();
+			return text.substring(from, Math.max(from, text.indexOf(':', from)))
+					.trim();
+		}
+
+		int size() {
+			return bounds.size();
+		}
+
+		int start(int i) {
+			return bounds.get(i)[0];
+		}
+
+		int end(int i) {
+			return bounds.get(i)[1];
+		}
+
+		String text(int i) {
+			return text.substring(start(i), end(i));
+		}
+
+		boolean isDirective(int i) {
+			return i < directives;
+		}
+
+		/**
+		 * Returns true if the text consists of prefix directives followed by
+		 * statements, without <code>@base</code> and without redefining a
+		 * prefix.
+		 */
+		boolean isIncremental() {
+			return incremental;
+		}
+
+		String[] getDirectives() {
+			String[] texts = new String[directives];
+			for (int i = 0; i < directives; i++)
+				texts[i] = text(i);
+			return texts;
+		}
+
+		private static boolean isWhitespace(char c) {
+			return c == ' ' || c == '\t' || c == '\n' || c == '\r'
+					|| c == '\f';
+		}
+
+		/**
+		 * Returns the offset after the string literal starting at the given
+		 * offset, or the end of the line for an unterminated short string.
+		 */
+		private static int skipString(String text, int i, char quote) {
+			int n = text.length();
+			String triple = new String(new char[] { quote, quote, quote });
+			if (text.startsWith(triple, i)) {
+				for (i += 3; i < n; i++) {
+					if (text.charAt(i) == '\\')
+						i++;
+					else if (text.startsWith(triple, i))
+						return i + 3;
+				}
+				return n;
+			}
+			for (i++; i < n; i++) {
+				char c = text.charAt(i);
+				if (c == '\\')
+					i++;
+				else if (c == quote)
+					return i + 1;
+				else if (c == '\n' || c == '\r')
+					return i;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Lists the distinct subjects of a model in {@link #SUBJECT_ORDER}.
+	 *
+	 * @param model
+	 * @return
+	 */
+	static Resource[] sortSubjects(Model model) {
+		List<Resource> subjects = new ArrayList<Resource>();
+		for (ResIterator it = model.listSubjects(); it.hasNext();)
+			subjects.add(it.next());
+		Collections.sort(subjects, SUBJECT_ORDER);
+		return subjects.toArray(new Resource[subjects.size()]);
+	}
+
+	/**
+	 * Returns the namespace prefixes of a model by namespace URI; if a
+	 * namespace has several prefixes, the alphabetically first one is used.
+	 *
+	 * @param model
+	 * @return
+	 */
+	static Map<String, String> getPrefixes(Model model) {
+		Map<String, String> prefixes = new HashMap<String, String>();
+		for (Map.Entry<String, String> ns : new TreeMap<String, String>(model
+				.getNsPrefixMap()).entrySet()) {
+			if (!prefixes.containsKey(ns.getValue()))
+				prefixes.put(ns.getValue(), ns.getKey());
+		}
+		return prefixes;
+	}
+
+	/**
+	 * Moves the triples and prefixes of a freshly parsed model into a
+	 * {@link CompactGraph} using the current {@link TermDictionary}.
+	 *
+	 * @param parsed
+	 * @return a model of the compact graph
+	 */
+	static Model compact(Model parsed) {
+		return ModelFactory.createModelForGraph(CompactGraph.create(
+				TermDictionary.current(), parsed.getGraph()));
+	}
+
+	/**
+	 * Returns the estimated heap occupied by a model built by
+	 * {@link #compact(Model)}.
+	 *
+	 * @param model
+	 * @return
+	 */
+	static long getWeight(Model model) {
+		return ((CompactGraph) model.getGraph()).getWeight();
+	}
+}
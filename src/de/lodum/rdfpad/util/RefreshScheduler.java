@@ -0,0 +1,363 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps recently requested pads warm by downloading them again in the
+ * background before they expire from the {@link ModelCache}, so that clients
+ * get them from memory instead of waiting for the etherpad.
+ * <p>
+ * Every pad that is served is {@link #touch(String) touched}. The refresh
+ * interval of a pad adapts to how often it changes: it is halved whenever a
+ * refresh brings new contents and doubled whenever it does not, within the
+ * configured bounds. Pads that have not been requested for a while are no
+ * longer refreshed. If the model or serializations of a pad have been built
+ * before, they are built again for new contents right after the refresh.
+ * <p>
+ * At most a configurable number of refreshes run at the same time; a pad
+ * whose refresh is due while all of them are busy waits for the next free
+ * slot. The time between a refresh being due and the refreshed pad being in
+ * the cache is recorded as the refresh lag.
+ */
+public class RefreshScheduler {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(RefreshScheduler.class);
+
+	/**
+	 * Default shortest refresh interval, in seconds. Can be set via the system
+	 * property <code>rdfpad.refresh.min</code>.
+	 */
+	public static final long DEFAULT_MIN_INTERVAL = 10;
+
+	/**
+	 * Default time after which a pad that has not been requested is no
+	 * longer refreshed, in seconds. Can be set via the system property
+	 * <code>rdfpad.refresh.idle</code>.
+	 */
+	public static final long DEFAULT_IDLE = 600;
+
+	/**
+	 * Default number of refreshes that may run at the same time. Can be set
+	 * via the system property <code>rdfpad.refresh.concurrency</code>; 0
+	 * turns background refreshes off.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	/**
+	 * Default number of pads that are kept warm at most. Can be set via the
+	 * system property <code>rdfpad.refresh.pads</code>.
+	 */
+	public static final int DEFAULT_MAX_PADS = 1000;
+
+	// delay before retrying a refresh that found all slots busy, in ms:
+	private static final long BUSY_DELAY = 250;
+
+	private final ModelCache cache;
+	private final long minInterval;
+	private final long maxInterval;
+	private final long idle;
+	private final int concurrency;
+	private final int maxPads;
+
+	private final ConcurrentMap<String, Tracked> tracked = new ConcurrentHashMap<String, Tracked>();
+	private Semaphore slots;
+	private ScheduledThreadPoolExecutor executor;
+
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong changed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong lagTotal = new AtomicLong();
+	private final AtomicLong lagMax = new AtomicLong();
+
+	/**
+	 * Creates a scheduler for the given cache, configured from the system
+	 * properties <code>rdfpad.refresh.min</code> (seconds),
+	 * <code>rdfpad.refresh.idle</code> (seconds),
+	 * <code>rdfpad.refresh.concurrency</code> and
+	 * <code>rdfpad.refresh.pads</code>. The longest refresh interval is half
+	 * the time to live of the cache, so that pads are refreshed before they
+	 * expire.
+	 *
+	 * @param cache
+	 */
+	public RefreshScheduler(ModelCache cache) {
+		this(cache, Long.getLong("rdfpad.refresh.min", DEFAULT_MIN_INTERVAL)
+				* 1000, cache.getTTL() / 2, Long.getLong("rdfpad.refresh.idle",
+				DEFAULT_IDLE) * 1000, Integer.getInteger(
+				"rdfpad.refresh.concurrency", DEFAULT_CONCURRENCY), Integer
+				.getInteger("rdfpad.refresh.pads", DEFAULT_MAX_PADS));
+	}
+
+	/**
+	 * @param cache
+	 * @param minInterval
+	 *            shortest refresh interval, in milliseconds
+	 * @param maxInterval
+	 *            longest refresh interval, in milliseconds
+	 * @param idle
+	 *            time after which a pad that has not been requested is no
+	 *            longer refreshed, in milliseconds
+	 * @param concurrency
+	 *            number of refreshes that may run at the same time, 0 to turn
+	 *            refreshes off
+	 * @param maxPads
+	 *            number of pads that are kept warm at most
+	 */
+	public RefreshScheduler(ModelCache cache, long minInterval,
+			long maxInterval, long idle, int concurrency, int maxPads) {
+		this.cache = cache;
+		this.minInterval = Math.max(1, minInterval);
+		this.maxInterval = Math.max(this.minInterval, maxInterval);
+		this.idle = idle;
+		this.concurrency = concurrency;
+		this.maxPads = maxPads;
+	}
+
+	public synchronized void start() {
+		if (concurrency <= 0 || executor != null)
+			return;
+		slots = new Semaphore(concurrency);
+		executor = new ScheduledThreadPoolExecutor(concurrency,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "rdfpad-refresh-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public synchronized void stop() {
+		if (executor != null)
+			executor.shutdownNow();
+		executor = null;
+		tracked.clear();
+	}
+
+	/**
+	 * Records that the pad with the given export URL has just been served,
+	 * and starts refreshing it if it is not refreshed already.
+	 *
+	 * @param exportURL
+	 */
+	public void touch(String exportURL) {
+		Tracked pad = tracked.get(exportURL);
+		if (pad != null) {
+			pad.lastRequested = System.currentTimeMillis();
+			return;
+		}
+		if (concurrency <= 0 || tracked.size() >= maxPads)
+			return;
+		pad = new Tracked(exportURL);
+		if (tracked.putIfAbsent(exportURL, pad) == null)
+			schedule(pad, pad.interval);
+	}
+
+	/**
+	 * Returns the number of pads currently kept warm.
+	 *
+	 * @return
+	 */
+	public int getTracked() {
+		return tracked.size();
+	}
+
+	/**
+	 * Returns the number of refreshes completed, successful or not.
+	 *
+	 * @return
+	 */
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+
+	/**
+	 * Returns the number of refreshes that brought new pad contents.
+	 *
+	 * @return
+	 */
+	public long getChanged() {
+		return changed.get();
+	}
+
+	/**
+	 * Returns the number of refreshes that failed.
+	 *
+	 * @return
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of pads that are no longer refreshed because they
+	 * have not been requested for a while.
+	 *
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the refresh lag summed up over all completed refreshes, in
+	 * milliseconds; divide by {@link #getRefreshes()} for the mean.
+	 *
+	 * @return
+	 */
+	public long getLagTotal() {
+		return lagTotal.get();
+	}
+
+	/**
+	 * Returns the largest refresh lag seen so far, in milliseconds.
+	 *
+	 * @return
+	 */
+	public long getLagMax() {
+		return lagMax.get();
+	}
+
+	private void schedule(Tracked pad, long delay) {
+		pad.due = System.currentTimeMillis() + delay;
+		if (!later(pad, delay))
+			tracked.remove(pad.exportURL, pad);
+	}
+
+	/**
+	 * Runs a task after the given delay, unless the scheduler has been
+	 * stopped; returns false in that case.
+	 */
+	private boolean later(Runnable task, long delay) {
+		ScheduledThreadPoolExecutor executor;
+		synchronized (this) {
+			executor = this.executor;
+		}
+		if (executor == null)
+			return false;
+		executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * A pad that is kept warm; runs its own refreshes.
+	 */
+	private class Tracked implements Runnable, ModelCache.LoadListener {
+
+		final String exportURL;
+		volatile long lastRequested = System.currentTimeMillis();
+		long interval = minInterval;
+		long due;
+		CachedPad previous;
+
+		Tracked(String exportURL) {
+			this.exportURL = exportURL;
+		}
+
+		public void run() {
+			if (System.currentTimeMillis() - lastRequested > idle) {
+				tracked.remove(exportURL, this);
+				dropped.incrementAndGet();
+				return;
+			}
+			if (!slots.tryAcquire()) {
+				later(this, BUSY_DELAY);
+				return;
+			}
+			previous = cache.get(exportURL);
+			try {
+				cache.refresh(exportURL, this);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+
+		public void loaded(final CachedPad pad) {
+			// build whatever had been built for the previous contents, off
+			// the thread of the upstream client:
+			later(new Runnable() {
+				public void run() {
+					try {
+						if (previous != null
+								&& !previous.getContentHash().equals(
+										pad.getContentHash())) {
+							changed.incrementAndGet();
+							interval = Math.max(minInterval, interval / 2);
+							warm(pad);
+						} else {
+							interval = Math.min(maxInterval, interval * 2);
+						}
+					} catch (Exception e) {
+						logger.debug("Could not prepare " + exportURL + ": "
+								+ e.getMessage());
+					} finally {
+						done();
+					}
+				}
+			}, 0);
+		}
+
+		public void failed(Throwable failure) {
+			logger.debug("Could not refresh " + exportURL + ": "
+					+ failure.getMessage());
+			failed.incrementAndGet();
+			interval = Math.min(maxInterval, interval * 2);
+			done();
+		}
+
+		private void warm(CachedPad pad) throws IOException {
+			if (previous.isParsed())
+				cache.getModel(pad);
+			for (String name : previous.getSerializationNames()) {
+				if (name.endsWith(CachedPad.GZIP))
+					cache.getCompressedSerialization(pad, name.substring(0,
+							name.length() - CachedPad.GZIP.length()));
+				else
+					cache.getSerialization(pad, name);
+			}
+		}
+
+		private void done() {
+			previous = null;
+			slots.release();
+			long lag = System.currentTimeMillis() - due;
+			refreshes.incrementAndGet();
+			lagTotal.addAndGet(lag);
+			long max;
+			while (lag > (max = lagMax.get()) && !lagMax.compareAndSet(max, lag))
+				;
+			schedule(this, interval);
+		}
+	}
+}
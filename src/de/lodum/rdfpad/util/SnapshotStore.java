@@ -0,0 +1,521 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the last downloaded contents of each pad, and their N-Triples
+ * serialization once it has been generated, in a file on disk, so that the
+ * {@link ModelCache} starts warm after a restart.
+ * <p>
+ * Snapshots are appended to a single file, which is memory-mapped for
+ * reading. When the store is started, only the record headers are read to
+ * build an index from export URLs to the latest record of each pad; the
+ * contents are read when a pad is first requested. A record that was cut off
+ * by a crash ends the file and is truncated, a record whose checksum does not
+ * match is ignored when it is read. Once the file reaches its size limit, it
+ * is rewritten with the most recent snapshots only.
+ * <p>
+ * Snapshots are written by a background thread, and only when the contents
+ * of a pad have changed or their N-Triples have become available. The store
+ * is off unless a directory is configured.
+ */
+public class SnapshotStore {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SnapshotStore.class);
+
+	/**
+	 * Default size limit of the snapshot file, in megabytes. Can be set via
+	 * the system property <code>rdfpad.snapshot.size</code>.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 256;
+
+	/**
+	 * Default age up to which a snapshot is used, in seconds. Can be set via
+	 * the system property <code>rdfpad.snapshot.maxage</code>.
+	 */
+	public static final long DEFAULT_MAX_AGE = 24 * 60 * 60;
+
+	/**
+	 * Name of the snapshot file in the snapshot directory.
+	 */
+	public static final String FILE_NAME = "pads.snapshots";
+
+	private static final String NTRIPLES = "N-TRIPLE";
+
+	// "RDPS", followed by the length of the record after the header and the
+	// checksum of that part:
+	private static final int MAGIC = 0x52445053;
+	private static final int HEADER = 12;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final long maxSize;
+	private final long maxAge;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private FileLock lock;
+	private MappedByteBuffer map;
+	private long end;
+	private ExecutorService writer;
+
+	// latest record of each pad:
+	private final Map<String, Entry> index = new HashMap<String, Entry>();
+
+	/**
+	 * Where a snapshot is stored in the file.
+	 */
+	private static class Entry {
+		final long offset;
+		final int length;
+		final String contentHash;
+		final long savedAt;
+		final boolean ntriples;
+
+		Entry(long offset, int length, String contentHash, long savedAt,
+				boolean ntriples) {
+			this.offset = offset;
+			this.length = length;
+			this.contentHash = contentHash;
+			this.savedAt = savedAt;
+			this.ntriples = ntriples;
+		}
+	}
+
+	/**
+	 * The stored state of a pad.
+	 */
+	public static class Snapshot {
+		private final String exportURL;
+		private final String contentHash;
+		private final long savedAt;
+		private final byte[] content;
+		private final byte[] ntriples;
+
+		Snapshot(String exportURL, String contentHash, long savedAt,
+				byte[] content, byte[] ntriples) {
+			this.exportURL = exportURL;
+			this.contentHash = contentHash;
+			this.savedAt = savedAt;
+			this.content = content;
+			this.ntriples = ntriples;
+		}
+
+		public String getExportURL() {
+			return exportURL;
+		}
+
+		public String getContentHash() {
+			return contentHash;
+		}
+
+		/**
+		 * Returns the time the contents had been downloaded, in
+		 * milliseconds.
+		 *
+		 * @return
+		 */
+		public long getSavedAt() {
+			return savedAt;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * Returns the N-Triples serialization of the contents, or null if it
+		 * had not been generated.
+		 *
+		 * @return
+		 */
+		public byte[] getNTriples() {
+			return ntriples;
+		}
+	}
+
+	/**
+	 * Creates a store in the directory given by the system property
+	 * <code>rdfpad.snapshot.dir</code>, configured from the system properties
+	 * <code>rdfpad.snapshot.size</code> (megabytes) and
+	 * <code>rdfpad.snapshot.maxage</code> (seconds). Without a directory,
+	 * the store keeps nothing.
+	 */
+	public SnapshotStore() {
+		this(System.getProperty("rdfpad.snapshot.dir") == null ? null
+				: new File(System.getProperty("rdfpad.snapshot.dir"),
+						FILE_NAME), Long.getLong("rdfpad.snapshot.size",
+				DEFAULT_MAX_SIZE) * 1024 * 1024, Long.getLong(
+				"rdfpad.snapshot.maxage", DEFAULT_MAX_AGE) * 1000);
+	}
+
+	/**
+	 * @param file
+	 *            the snapshot file, null to keep nothing
+	 * @param maxSize
+	 *            size limit of the file, in bytes; at most 2 GB
+	 * @param maxAge
+	 *            age up to which a snapshot is used, in milliseconds
+	 */
+	public SnapshotStore(File file, long maxSize, long maxAge) {
+		this.file = file;
+		this.maxSize = Math.min(maxSize, Integer.MAX_VALUE);
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Opens the snapshot file, creating it if needed, and reads its index.
+	 * If the file cannot be opened, e.g. because another server uses it, the
+	 * store keeps nothing.
+	 */
+	public synchronized void start() {
+		if (file == null || channel != null)
+			return;
+		try {
+			open();
+		} catch (IOException e) {
+			logger.warn("Cannot use snapshots in " + file + ": "
+					+ e.getMessage());
+			close();
+			return;
+		}
+		writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "rdfpad-snapshots");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		logger.info("Snapshots of " + index.size() + " pads in " + file);
+	}
+
+	/**
+	 * Writes the snapshots still waiting and closes the file.
+	 */
+	public void stop() {
+		ExecutorService writer;
+		synchronized (this) {
+			writer = this.writer;
+			this.writer = null;
+		}
+		if (writer != null) {
+			writer.shutdown();
+			try {
+				writer.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			close();
+		}
+	}
+
+	/**
+	 * Returns the number of pads with a snapshot.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the export URLs of the pads with a snapshot that is not too
+	 * old to be used.
+	 *
+	 * @return
+	 */
+	public synchronized List<String> getExportURLs() {
+		List<String> urls = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Entry> entry : index.entrySet())
+			if (now - entry.getValue().savedAt <= maxAge)
+				urls.add(entry.getKey());
+		return urls;
+	}
+
+	/**
+	 * Returns the snapshot of the pad with the given export URL, or null if
+	 * there is none, it is too old or it cannot be read.
+	 *
+	 * @param exportURL
+	 * @return
+	 */
+	public synchronized Snapshot get(String exportURL) {
+		Entry entry = index.get(exportURL);
+		if (channel == null || entry == null
+				|| System.currentTimeMillis() - entry.savedAt > maxAge)
+			return null;
+		try {
+			return read(entry);
+		} catch (IOException e) {
+			logger.warn("Cannot read snapshot of " + exportURL + ": "
+					+ e.getMessage());
+			index.remove(exportURL);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a snapshot of a pad in the background, unless the latest
+	 * snapshot has the same contents and, if the pad has its N-Triples
+	 * serialization, that as well.
+	 *
+	 * @param pad
+	 */
+	public void save(final CachedPad pad) {
+		synchronized (this) {
+			if (writer == null || !isNewer(pad))
+				return;
+			writer.execute(new Runnable() {
+				public void run() {
+					write(pad);
+				}
+			});
+		}
+	}
+
+	private boolean isNewer(CachedPad pad) {
+		Entry entry = index.get(pad.getExportURL());
+		return entry == null
+				|| !entry.contentHash.equals(pad.getContentHash())
+				|| (!entry.ntriples && pad.getSerialization(NTRIPLES) != null);
+	}
+
+	private synchronized void write(CachedPad pad) {
+		if (channel == null || !isNewer(pad))
+			return;
+		byte[] url = pad.getExportURL().getBytes(UTF8);
+		byte[] hash = pad.getContentHash().getBytes(UTF8);
+		byte[] content = pad.getContentBytes();
+		byte[] ntriples = pad.getSerialization(NTRIPLES);
+
+		long length = 8 + 2 + url.length + 2 + hash.length + 4
+				+ content.length + 4 + (ntriples == null ? 0 : ntriples.length);
+		if (HEADER + length > maxSize / 2)
+			return;
+		ByteBuffer record = ByteBuffer.allocate(HEADER + (int) length);
+		record.position(HEADER);
+		record.putLong(pad.getLoadedAt());
+		record.putShort((short) url.length).put(url);
+		record.putShort((short) hash.length).put(hash);
+		record.putInt(content.length).put(content);
+		if (ntriples == null)
+			record.putInt(-1);
+		else
+			record.putInt(ntriples.length).put(ntriples);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER, (int) length);
+		record.putInt(0, MAGIC).putInt(4, (int) length).putInt(8,
+				(int) crc.getValue());
+		record.flip();
+
+		try {
+			if (end + record.limit() > maxSize)
+				compact();
+			long offset = end;
+			while (record.hasRemaining())
+				channel.write(record, offset + record.position());
+			end += record.limit();
+			index.put(pad.getExportURL(), new Entry(offset, record.limit(),
+					pad.getContentHash(), pad.getLoadedAt(), ntriples != null));
+		} catch (IOException e) {
+			logger.warn("Cannot write snapshot of " + pad.getExportURL()
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a record from the mapped file, mapping it again if the record
+	 * has been appended since.
+	 */
+	private Snapshot read(Entry entry) throws IOException {
+		if (map == null || map.capacity() < entry.offset + entry.length)
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+		ByteBuffer record = map.duplicate();
+		record.position((int) entry.offset).limit(
+				(int) entry.offset + entry.length);
+		record = record.slice();
+
+		byte[] body = new byte[entry.length - HEADER];
+		record.position(HEADER);
+		record.get(body);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if (record.getInt(0) != MAGIC || record.getInt(8) != (int) crc.getValue())
+			throw new IOException("Checksum mismatch at " + entry.offset);
+
+		ByteBuffer in = ByteBuffer.wrap(body);
+		long savedAt = in.getLong();
+		String url = new String(getBytes(in, in.getShort()), UTF8);
+		String hash = new String(getBytes(in, in.getShort()), UTF8);
+		byte[] content = getBytes(in, in.getInt());
+		int length = in.getInt();
+		byte[] ntriples = length < 0 ? null : getBytes(in, length);
+		return new Snapshot(url, hash, savedAt, content, ntriples);
+	}
+
+	private static byte[] getBytes(ByteBuffer in, int length) {
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Opens the file and indexes the records in it by reading their headers
+	 * only; a record cut off at the end is truncated.
+	 */
+	private void open() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		lock = channel.tryLock();
+		if (lock == null)
+			throw new IOException("File is in use");
+
+		long size = channel.size();
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		index.clear();
+		long offset = 0;
+		while (offset + HEADER <= size) {
+			int pos = (int) offset;
+			int length = map.getInt(pos + 4);
+			if (map.getInt(pos) != MAGIC || length < 8 + 2 + 2 + 4 + 4
+					|| offset + HEADER + length > size)
+				break;
+			ByteBuffer in = map.duplicate();
+			in.position(pos + HEADER);
+			long savedAt = in.getLong();
+			String url = new String(getBytes(in, in.getShort()), UTF8);
+			String hash = new String(getBytes(in, in.getShort()), UTF8);
+			in.position(in.position() + in.getInt());
+			boolean ntriples = in.getInt() >= 0;
+			index.put(url, new Entry(offset, HEADER + length, hash, savedAt,
+					ntriples));
+			offset += HEADER + length;
+		}
+		if (offset < size) {
+			logger.warn("Truncating " + file + " after " + offset
+					+ " bytes");
+			channel.truncate(offset);
+			map = null;
+		}
+		end = offset;
+	}
+
+	/**
+	 * Rewrites the file with the most recent snapshots, taking up half of
+	 * the size limit at most.
+	 */
+	private void compact() throws IOException {
+		List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(
+				index.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+			public int compare(Map.Entry<String, Entry> a,
+					Map.Entry<String, Entry> b) {
+				return Long.valueOf(b.getValue().savedAt).compareTo(
+						a.getValue().savedAt);
+			}
+		});
+		if (map == null || map.capacity() < end)
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+
+		File compacted = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		Map<String, Entry> kept = new HashMap<String, Entry>();
+		long offset = 0;
+		try {
+			FileChannel target = out.getChannel();
+			target.truncate(0);
+			for (Map.Entry<String, Entry> e : entries) {
+				Entry entry = e.getValue();
+				if (offset + entry.length > maxSize / 2)
+					break;
+				ByteBuffer record = map.duplicate();
+				record.position((int) entry.offset).limit(
+						(int) entry.offset + entry.length);
+				while (record.hasRemaining())
+					target.write(record, offset + record.position()
+							- entry.offset);
+				kept.put(e.getKey(), new Entry(offset, entry.length,
+						entry.contentHash, entry.savedAt, entry.ntriples));
+				offset += entry.length;
+			}
+			target.force(false);
+		} finally {
+			out.close();
+		}
+
+		close();
+		if (!compacted.renameTo(file))
+			throw new IOException("Cannot replace " + file);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		lock = channel.tryLock();
+		if (lock == null)
+			throw new IOException("File is in use");
+		index.clear();
+		index.putAll(kept);
+		end = offset;
+		logger.info("Compacted " + file + " to " + kept.size() + " pads");
+	}
+
+	private void close() {
+		try {
+			if (lock != null)
+				lock.release();
+			if (raf != null)
+				raf.close();
+		} catch (IOException e) {
+			logger.warn("Cannot close " + file + ": " + e.getMessage());
+		}
+		lock = null;
+		raf = null;
+		channel = null;
+		map = null;
+		index.clear();
+	}
+}
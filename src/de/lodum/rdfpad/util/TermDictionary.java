@@ -0,0 +1,204 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Numbers the RDF terms of the {@link CompactGraph}s, so that they store
+ * triples as ints and each term is held once for all pads that use it.
+ * <p>
+ * Terms are never removed from a dictionary. Instead, once the current
+ * dictionary holds <code>rdfpad.store.terms</code> terms, pads parsed from
+ * then on use a new one, and the old dictionary goes away together with the
+ * last pad that uses it. Pads using an old dictionary are parsed in full when
+ * they change rather than updated, so that no terms are added to it.
+ * <p>
+ * The ids are found by an open addressing hash table of ints rather than a
+ * map, which would take more heap per term than the term itself. Interning
+ * is synchronized; looking up ids and terms is not, which is safe for the
+ * terms of any graph a thread has been handed, as they have been interned
+ * before.
+ */
+public class TermDictionary {
+
+	/**
+	 * Default number of terms after which a new dictionary is started.
+	 */
+	public static final int DEFAULT_MAX_TERMS = 1000000;
+
+	private static final int MAX_TERMS = Integer.getInteger(
+			"rdfpad.store.terms", DEFAULT_MAX_TERMS);
+
+	// fixed cost of a term: the node and its slots in the arrays:
+	private static final long TERM_WEIGHT = 64;
+
+	private static TermDictionary current = new TermDictionary();
+
+	// the terms by id, replaced by a larger copy when full:
+	private volatile Node[] nodes = new Node[1024];
+
+	// id + 1 of the terms by the hash of the term, 0 for free slots; at most
+	// half full, and replaced by a larger copy beyond that:
+	private volatile int[] table = new int[2048];
+
+	private int size = 0;
+
+	/**
+	 * Returns the dictionary new pads should use.
+	 *
+	 * @return
+	 */
+	public static synchronized TermDictionary current() {
+		if (current.size() >= MAX_TERMS)
+			current = new TermDictionary();
+		return current;
+	}
+
+	/**
+	 * Returns the id of the given term, adding it if it is new.
+	 *
+	 * @param node
+	 *            a concrete node
+	 * @return
+	 */
+	int intern(Node node) {
+		int id = lookup(node);
+		if (id >= 0)
+			return id;
+		synchronized (this) {
+			id = lookup(node);
+			if (id >= 0)
+				return id;
+			Node[] nodes = this.nodes;
+			if (size == nodes.length) {
+				Node[] grown = new Node[2 * size];
+				System.arraycopy(nodes, 0, grown, 0, size);
+				this.nodes = nodes = grown;
+			}
+			nodes[size] = node;
+			int[] table = this.table;
+			if (2 * (size + 1) > table.length)
+				this.table = table = rehash(nodes, size, 2 * table.length);
+			insert(table, node, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * Returns the id of the given term, or -1 if it has none.
+	 *
+	 * @param node
+	 * @return
+	 */
+	int lookup(Node node) {
+		int[] table = this.table;
+		int mask = table.length - 1;
+		for (int i = hash(node) & mask;; i = (i + 1) & mask) {
+			int slot = table[i];
+			if (slot == 0)
+				return -1;
+			if (getInterned(slot - 1).equals(node))
+				return slot - 1;
+		}
+	}
+
+	/**
+	 * Returns the term with an id found in the table, which may have been
+	 * interned by another thread just now.
+	 */
+	private Node getInterned(int id) {
+		Node[] nodes = this.nodes;
+		if (id < nodes.length && nodes[id] != null)
+			return nodes[id];
+		synchronized (this) {
+			return this.nodes[id];
+		}
+	}
+
+	private static void insert(int[] table, Node node, int id) {
+		int mask = table.length - 1;
+		int i = hash(node) & mask;
+		while (table[i] != 0)
+			i = (i + 1) & mask;
+		table[i] = id + 1;
+	}
+
+	private static int[] rehash(Node[] nodes, int size, int length) {
+		int[] table = new int[length];
+		for (int id = 0; id < size; id++)
+			insert(table, nodes[id], id);
+		return table;
+	}
+
+	private static int hash(Node node) {
+		int h = node.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the term with the given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	Node get(int id) {
+		return nodes[id];
+	}
+
+	/**
+	 * Returns the given triple made of the nodes held by this dictionary,
+	 * interning those that are new, so that it shares them with all other
+	 * users of the dictionary.
+	 *
+	 * @param triple
+	 * @return
+	 */
+	Triple canonical(Triple triple) {
+		Node s = get(intern(triple.getSubject()));
+		Node p = get(intern(triple.getPredicate()));
+		Node o = get(intern(triple.getObject()));
+		if (s == triple.getSubject() && p == triple.getPredicate()
+				&& o == triple.getObject())
+			return triple;
+		return new Triple(s, p, o);
+	}
+
+	/**
+	 * Returns the estimated heap taken by the term with the given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	long weigh(int id) {
+		Node node = get(id);
+		if (node.isLiteral())
+			return TERM_WEIGHT + 2 * node.getLiteralLexicalForm().length();
+		if (node.isURI())
+			return TERM_WEIGHT + 2 * node.getURI().length();
+		return TERM_WEIGHT;
+	}
+
+	/**
+	 * Returns the number of terms in this dictionary.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,350 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.n3.turtle.TurtleEventHandler;
+import com.hp.hpl.jena.n3.turtle.TurtleParseException;
+import com.hp.hpl.jena.n3.turtle.parser.ParseException;
+import com.hp.hpl.jena.n3.turtle.parser.TokenMgrError;
+import com.hp.hpl.jena.n3.turtle.parser.TurtleParser;
+import com.hp.hpl.jena.util.FileUtils;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Converts the Turtle contents of a pad into Turtle or N-Triples while they
+ * are parsed, without building a Jena model: every triple reported by the
+ * Turtle parser is written out right away. Memory use therefore does not
+ * depend on the size of the pad, and the first triples can be sent before
+ * the parser has reached the end of the pad.
+ * <p>
+ * N-Triples are written with absolute URIs and ASCII only. Turtle keeps the
+ * prefixes declared in the pad and groups consecutive triples about the same
+ * subject, but does not reorder them.
+ */
+public class TurtleStreamer implements TurtleEventHandler {
+
+	// triples after which the output is flushed, so that they reach the
+	// client right away:
+	private static final int FIRST_TRIPLES = 100;
+
+	private static final String TYPE = RDF.type.getURI();
+
+	private final Writer out;
+	private final boolean turtle;
+
+	// prefixes declared so far, in both directions:
+	private final Map<String, String> namespaces = new HashMap<String, String>();
+	private final Map<String, String> prefixes = new HashMap<String, String>();
+
+	// the last subject and predicate written, for abbreviating Turtle:
+	private Node subject;
+	private Node predicate;
+
+	private long triples = 0;
+
+	private TurtleStreamer(Writer out, boolean turtle) {
+		this.out = out;
+		this.turtle = turtle;
+	}
+
+	/**
+	 * Checks whether the given serialization can be written by this class.
+	 *
+	 * @param lang
+	 *            the Jena name of the serialization, e.g. "N-TRIPLE"
+	 * @return
+	 */
+	public static boolean supports(String lang) {
+		return "TURTLE".equals(lang) || "N-TRIPLE".equals(lang);
+	}
+
+	/**
+	 * Parses Turtle from the input and writes it to the output in the given
+	 * serialization, as UTF-8.
+	 *
+	 * @param in
+	 *            the Turtle contents of a pad
+	 * @param base
+	 *            the base URI relative URIs are resolved against
+	 * @param lang
+	 *            "TURTLE" or "N-TRIPLE"
+	 * @param out
+	 * @throws IOException
+	 *             if the output could not be written
+	 * @throws TurtleParseException
+	 *             if the input is not valid Turtle; the triples before the
+	 *             error may have been written by then
+	 */
+	public static void write(InputStream in, String base, String lang,
+			OutputStream out) throws IOException {
+		if (!supports(lang))
+			throw new IllegalArgumentException("Cannot stream " + lang);
+
+		TurtleStreamer streamer = new TurtleStreamer(new BufferedWriter(
+				new OutputStreamWriter(out, "UTF-8"), 8192), "TURTLE"
+				.equals(lang));
+		TurtleParser parser = new TurtleParser(FileUtils.asUTF8(in));
+		parser.setEventHandler(streamer);
+		parser.setBaseURI(base);
+		try {
+			parser.parse();
+		} catch (ParseException e) {
+			throw new TurtleParseException(e.getMessage());
+		} catch (TokenMgrError e) {
+			throw new TurtleParseException(e.getMessage());
+		} catch (OutputFailed e) {
+			throw e.getCause();
+		}
+		streamer.end();
+	}
+
+	public void triple(int line, int col, Triple triple) {
+		try {
+			if (turtle)
+				writeTurtle(triple);
+			else
+				writeNTriple(triple);
+			if (++triples == FIRST_TRIPLES)
+				out.flush();
+		} catch (IOException e) {
+			throw new OutputFailed(e);
+		}
+	}
+
+	public void prefix(int line, int col, String prefix, String iri) {
+		String old = prefixes.put(prefix, iri);
+		if (old != null && prefix.equals(namespaces.get(old)))
+			namespaces.remove(old);
+		namespaces.put(iri, prefix);
+		if (!turtle)
+			return;
+		try {
+			closeStatement();
+			out.write("@prefix ");
+			out.write(prefix);
+			out.write(": ");
+			writeURI(iri, false);
+			out.write(" .\n");
+		} catch (IOException e) {
+			throw new OutputFailed(e);
+		}
+	}
+
+	public void startFormula(int line, int col) {
+		// formulae are N3 only and rejected by the Turtle parser
+	}
+
+	public void endFormula(int line, int col) {
+	}
+
+	private void end() throws IOException {
+		if (turtle)
+			closeStatement();
+		out.flush();
+	}
+
+	private void writeNTriple(Triple triple) throws IOException {
+		writeNode(triple.getSubject(), true);
+		out.write(' ');
+		writeNode(triple.getPredicate(), true);
+		out.write(' ');
+		writeNode(triple.getObject(), true);
+		out.write(" .\n");
+	}
+
+	private void writeTurtle(Triple triple) throws IOException {
+		Node s = triple.getSubject();
+		Node p = triple.getPredicate();
+		if (s.equals(subject) && p.equals(predicate)) {
+			out.write(" ,\n\t\t");
+		} else if (s.equals(subject)) {
+			out.write(" ;\n\t");
+			writePredicate(p);
+			out.write(' ');
+		} else {
+			closeStatement();
+			writeNode(s, false);
+			out.write(' ');
+			writePredicate(p);
+			out.write(' ');
+		}
+		writeNode(triple.getObject(), false);
+		subject = s;
+		predicate = p;
+	}
+
+	private void closeStatement() throws IOException {
+		if (subject != null)
+			out.write(" .\n");
+		subject = null;
+		predicate = null;
+	}
+
+	private void writePredicate(Node p) throws IOException {
+		if (TYPE.equals(p.getURI()))
+			out.write('a');
+		else
+			writeNode(p, false);
+	}
+
+	private void writeNode(Node node, boolean ascii) throws IOException {
+		if (node.isURI()) {
+			if (ascii || !writePrefixed(node.getURI()))
+				writeURI(node.getURI(), ascii);
+		} else if (node.isBlank()) {
+			writeBlank(node.getBlankNodeLabel());
+		} else if (node.isLiteral()) {
+			out.write('"');
+			writeEscaped(node.getLiteralLexicalForm(), ascii);
+			out.write('"');
+			String lang = node.getLiteralLanguage();
+			String datatype = node.getLiteralDatatypeURI();
+			if (lang != null && lang.length() > 0) {
+				out.write('@');
+				out.write(lang);
+			} else if (datatype != null) {
+				out.write("^^");
+				writeNode(Node.createURI(datatype), ascii);
+			}
+		} else {
+			throw new TurtleParseException("Unexpected node " + node);
+		}
+	}
+
+	/**
+	 * Writes a URI as a prefixed name if one of the declared prefixes covers
+	 * its namespace and its local name needs no escaping.
+	 */
+	private boolean writePrefixed(String uri) throws IOException {
+		int split = Math.max(uri.lastIndexOf('#'), uri.lastIndexOf('/')) + 1;
+		if (split == 0)
+			return false;
+		String prefix = namespaces.get(uri.substring(0, split));
+		if (prefix == null)
+			return false;
+		for (int i = split; i < uri.length(); i++) {
+			char c = uri.charAt(i);
+			boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| c == '_';
+			boolean digit = (c >= '0' && c <= '9') || c == '-';
+			if (!letter && !(digit && i > split))
+				return false;
+		}
+		out.write(prefix);
+		out.write(':');
+		out.write(uri, split, uri.length() - split);
+		return true;
+	}
+
+	private void writeURI(String uri, boolean ascii) throws IOException {
+		out.write('<');
+		for (int i = 0; i < uri.length(); i++) {
+			char c = uri.charAt(i);
+			if (c <= 0x20 || c == '<' || c == '>' || c == '"' || c == '\\'
+					|| c == '{' || c == '}' || c == '|' || c == '^'
+					|| c == '`' || (ascii && c >= 0x7f))
+				writeUnicodeEscape(c);
+			else
+				out.write(c);
+		}
+		out.write('>');
+	}
+
+	private void writeEscaped(String s, boolean ascii) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				if (c < 0x20 || (ascii && c >= 0x7f))
+					writeUnicodeEscape(c);
+				else
+					out.write(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes a char as a Unicode escape; like Jena's N-Triples writer, chars
+	 * outside the BMP are written as two escaped surrogates.
+	 */
+	private void writeUnicodeEscape(char c) throws IOException {
+		String hex = "000" + Integer.toHexString(c).toUpperCase();
+		out.write("\\u");
+		out.write(hex.substring(hex.length() - 4));
+	}
+
+	/**
+	 * Writes a blank node label made of letters and digits only: every other
+	 * char, and 'x' itself, is written as 'x' followed by four hex digits, so
+	 * that different labels stay different.
+	 */
+	private void writeBlank(String label) throws IOException {
+		out.write("_:b");
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c != 'x'
+					&& ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+				out.write(c);
+			} else {
+				String hex = "000" + Integer.toHexString(c);
+				out.write('x');
+				out.write(hex.substring(hex.length() - 4));
+			}
+		}
+	}
+
+	/**
+	 * Carries a write failure out of the parser callbacks.
+	 */
+	private static class OutputFailed extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		OutputFailed(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
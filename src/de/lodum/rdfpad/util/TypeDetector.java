@@ -16,247 +16,353 @@ package de.lodum.rdfpad.util;
  * limitations under the License.
  */
 
-
-
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.regex.Pattern;
 
 /**
- * Implementation of {@link org.deri.any23.mime.MIMETypeDetector} based on
- * <a href="http://lucene.apache.org/tika/">Apache Tika</a>.
- *
- * @author Michele Mostarda (michele.mostarda@gmail.com)
- * @author Davide Palmisano (dpalmisano@gmail.com)
+ * Tells which RDF syntax a pad is written in by looking at its first few
+ * kilobytes, so that the matching parser can be picked: Turtle, N-Triples,
+ * N3, N-Quads or TriG. The bytes are scanned once, without copying or
+ * decoding them, by a simple tokenizer that skips over IRIs, literals and
+ * comments and notes the signatures of each syntax as it goes:
+ * <ul>
+ * <li>N3: <code>=&gt;</code>, <code>&lt;=</code>, <code>=</code>,
+ * variables, <code>@keywords</code>, <code>@forAll</code>,
+ * <code>@forSome</code>, <code>is ... of</code> and formulae in object
+ * position</li>
+ * <li>TriG: graphs in braces</li>
+ * <li>Turtle: directives, prefixed names, <code>a</code>, numbers, booleans,
+ * <code>;</code>, <code>,</code>, <code>[]</code> and <code>()</code></li>
+ * <li>N-Quads and N-Triples: statements of four or three plain terms only</li>
+ * </ul>
+ * Pads that fit none of these, e.g. because the prefix is empty, are taken
+ * to be Turtle.
  */
-public class TypeDetector  {
-
+public class TypeDetector {
 
+	public static final String TURTLE = "TURTLE";
 
-	// TODO: centralize mimetype strings somewhere.
+	public static final String NTRIPLES = "N-TRIPLE";
 
 	public static final String N3 = "N3";
 
-	public static final String NQUADS = "NQUAD";
+	public static final String NQUADS = "N-QUADS";
 
-	public static final String TURTLE = "TURTLE";
-
-	public static final String TRIX = "TRIGX";
+	public static final String TRIG = "TRIG";
 
 	/**
-	 * N3 patterns.
+	 * Number of bytes at the start of a pad that are looked at.
 	 */
-	private static final Pattern[] N3_PATTERNS = {
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*<\\S+>\\s*\\."             ), // * URI URI .
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*_:\\S+\\s*\\."             ), // * URI BNODE .
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*\".*\"(@\\S+)?\\s*\\."     ), // * URI LLITERAL .
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*\".*\"(\\^\\^\\S+)?\\s*\\.")  // * URI TLITERAL .
-	};
+	public static final int PREFIX = 8192;
 
-	/**
-	 * N-Quads patterns.
-	 */
-	private static final Pattern[] NQUADS_PATTERNS = {
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*<\\S+>\\s*\\<\\S+>\\s*\\."             ), // * URI URI      URI .
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*_:\\S+\\s*\\<\\S+>\\s*\\."             ), // * URI BNODE    URI .
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*\".*\"(@\\S+)?\\s*\\<\\S+>\\s*\\."     ), // * URI LLITERAL URI .
-		Pattern.compile("^\\S+\\s*<\\S+>\\s*\".*\"(\\^\\^\\S+)?\\s*\\<\\S+>\\s*\\.")  // * URI TLITERAL URI .
-	};
+	// the kinds of terms the scanner tells apart:
+	private static final int IRI = 1;
+	private static final int BNODE = 2;
+	private static final int LITERAL = 3;
+	private static final int NAME = 4;
 
 	/**
-	 * TRIX patterns.
-	 */
-	private static final Pattern[] TRIX_PATTERNS = {
-
-		Pattern.compile(".*<\\S+>\\s{0,}\\{" ),
-		Pattern.compile(".*_?:\\S+\\s{0,}\\{" )
-
-	};
-
-
-
-	/**
-	 * Checks if the stream contains the <i>N3</i> triple patterns.
+	 * Returns true if pads in the given syntax are read by the Turtle parser,
+	 * i.e. for Turtle and N-Triples.
 	 *
-	 * @param is input stream to be verified.
-	 * @return <code>true</code> if <i>N3</i> patterns are detected, <code>false</code> otherwise.
-	 * @throws IOException
+	 * @param format
+	 * @return
 	 */
-	public static boolean checkN3Format(InputStream is) throws IOException {
-		return findPattern(N3_PATTERNS, '.', is);
+	public static boolean isTurtle(String format) {
+		return TURTLE.equals(format) || NTRIPLES.equals(format);
 	}
 
 	/**
-	 * Checks if the stream contains the <i>NQuads</i> patterns.
+	 * Detects the syntax of the given pad contents from their first
+	 * {@link #PREFIX} bytes.
 	 *
-	 * @param is input stream to be verified.
-	 * @return <code>true</code> if <i>N3</i> patterns are detected, <code>false</code> otherwise.
-	 * @throws IOException
+	 * @param content
+	 * @return one of {@link #TURTLE}, {@link #NTRIPLES}, {@link #N3},
+	 *         {@link #NQUADS} and {@link #TRIG}
 	 */
-	public static boolean checkNQuadsFormat(InputStream is) throws IOException {
-		return findPattern(NQUADS_PATTERNS, '.', is);
-	}
-
-
-	public static boolean checkTrixFormat(InputStream is) throws IOException {
-		return findPattern(TRIX_PATTERNS, '{', is);
-	}
-
-	public static void main(String[] args) {
-
-
-		System.out.println(new TypeDetector().guessType(new File("test_data/test.trix")));
-		System.out.println(new TypeDetector().guessType(new File("test_data/test.n3")));
-
-
+	public static String detect(byte[] content) {
+		return detect(content, 0, Math.min(content.length, PREFIX));
 	}
 
 	/**
-	 * Tries to apply one of the given patterns on a sample of the input stream.
+	 * Detects the syntax of the pad contents in the given part of an array. A
+	 * statement cut off at the end of the part is ignored.
 	 *
-	 * @param patterns the patterns to apply.
-	 * @param delimiterChar the delimiter of the sample.
-	 * @param is the input stream to sample.
-	 * @return <code>true</code> if a pattern has been applied, <code>false</code> otherwise.
-	 * @throws IOException
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 * @return one of {@link #TURTLE}, {@link #NTRIPLES}, {@link #N3},
+	 *         {@link #NQUADS} and {@link #TRIG}
 	 */
-	private static boolean findPattern(Pattern[] patterns, char delimiterChar, InputStream is)
-	throws IOException {
-		String sample = extractDataSample(is, delimiterChar);
-		//sample= sample.replaceAll("\\s+", " ");;
-		for(Pattern pattern : patterns) {
-			if(pattern.matcher(sample).find()) {
-				return true;
-			}
-		}
-		return false;
-	}
-
-	/**
-	 * Extracts a sample data from the input stream, from the current
-	 * mark to the first <i>breakChar</i> char.
-	 *
-	 * @param is the input stream to sample.
-	 * @param breakChar the char to break to sample.
-	 * @return the sample string.
-	 * @throws IOException if an error occurs during sampling.
-	 */
-	private static String extractDataSample(InputStream is, char breakChar) throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(is));
-		StringBuilder sb = new StringBuilder();
-		final int MAX_SIZE = 1024 * 2;
-		int c;
-		boolean insideBlock = false;
-		int read = 0;
-		br.mark(MAX_SIZE);
-		try {
-			while ((c = br.read()) != -1) {
-				read++;
-				if (read > MAX_SIZE) {
+	public static String detect(byte[] buf, int offset, int length) {
+		int end = offset + length;
+		boolean turtle = false;
+		boolean trig = false;
+		int triples = 0;
+		int quads = 0;
+
+		// the current statement: its terms, the kind of its last term and
+		// whether it consists of plain terms only:
+		int terms = 0;
+		int last = 0;
+		boolean plain = true;
+
+		int i = offset;
+		scan: while (i < end) {
+			int c = buf[i] & 0xff;
+			switch (c) {
+			case ' ':
+			case '\t':
+			case '\r':
+			case '\n':
+			case '\f':
+				i++;
+				break;
+			case '#':
+				while (i < end && buf[i] != '\n' && buf[i] != '\r')
+					i++;
+				break;
+			case '<':
+				if (i + 1 < end && buf[i + 1] == '=')
+					return N3;
+				i = skipIRI(buf, i, end);
+				if (i < 0)
+					break scan;
+				terms++;
+				last = IRI;
+				break;
+			case '"':
+			case '\'':
+				i = skipString(buf, i, end);
+				if (i < 0)
+					break scan;
+				if (i < end && buf[i] == '@') {
+					i = skipName(buf, i + 1, end);
+				} else if (i + 1 < end && buf[i] == '^' && buf[i + 1] == '^') {
+					i += 2;
+					if (i < end && buf[i] == '<') {
+						i = skipIRI(buf, i, end);
+						if (i < 0)
+							break scan;
+					} else {
+						turtle = true;
+						i = skipName(buf, i, end);
+					}
+				}
+				terms++;
+				last = LITERAL;
+				break;
+			case '_':
+				if (i + 1 < end && buf[i + 1] == ':') {
+					i = skipName(buf, i + 2, end);
+					terms++;
+					last = BNODE;
+				} else {
+					i = skipName(buf, i, end);
+					turtle = true;
+					plain = false;
+				}
+				break;
+			case '.':
+				if (i + 1 < end && isDigit(buf[i + 1])) {
+					// a decimal such as .5
+					i = skipName(buf, i + 1, end);
+					turtle = true;
+					plain = false;
 					break;
 				}
-				if ('<' == c) {
-					insideBlock = true;
-				} else if ('>' == c) {
-					insideBlock = false;
-				} else if ('"' == c) {
-					insideBlock = !insideBlock;
+				if (plain && terms == 3)
+					triples++;
+				else if (plain && terms == 4 && (last == IRI || last == BNODE))
+					quads++;
+				terms = 0;
+				plain = true;
+				i++;
+				break;
+			case '@': {
+				int start = ++i;
+				i = skipName(buf, i, end);
+				if (is(buf, start, i, "prefix") || is(buf, start, i, "base")) {
+					turtle = true;
+					plain = false;
+				} else if (i > start) {
+					// @keywords, @forAll, @forSome
+					return N3;
 				}
-				sb.append((char) c);
-				if (!insideBlock && breakChar == c) {
+				break;
+			}
+			case '{':
+				if (terms >= 2)
+					return N3;
+				// a graph, named or not:
+				trig = true;
+				terms = 0;
+				plain = true;
+				i++;
+				break;
+			case '}':
+				terms = 0;
+				plain = true;
+				i++;
+				break;
+			case '=':
+				if (i + 1 < end && buf[i + 1] == '>')
+					return N3;
+				// "<g> = { ... }" names a graph in TriG, otherwise this is
+				// owl:sameAs:
+				i++;
+				while (i < end && isSpace(buf[i]))
+					i++;
+				if (i < end && buf[i] != '{')
+					return N3;
+				break;
+			case '?':
+				return N3;
+			case ';':
+			case ',':
+			case '[':
+			case ']':
+			case '(':
+			case ')':
+				turtle = true;
+				plain = false;
+				i++;
+				break;
+			default: {
+				int start = i;
+				if (c == '+' || c == '-')
+					i++;
+				i = skipName(buf, i, end);
+				if (i == start) {
+					i++;
 					break;
 				}
+				if (is(buf, start, i, "is") || is(buf, start, i, "of")
+						|| is(buf, start, i, "has"))
+					return N3;
+				// prefixed names, "a", numbers and booleans:
+				turtle = true;
+				plain = false;
+				terms++;
+				last = NAME;
+			}
 			}
-		} finally {
-			is.reset();
-			br.reset();
 		}
-		return sb.toString();
-	}
-
 
+		if (trig)
+			return TRIG;
+		if (turtle)
+			return TURTLE;
+		if (quads > 0)
+			return NQUADS;
+		if (triples > 0)
+			return NTRIPLES;
+		return TURTLE;
+	}
 
 	/**
-	 * Estimates the <code>MIME</code> type of the content of input file.
-	 * The <i>input</i> stream must be resettable.
+	 * Detects the syntax of the given file from its first {@link #PREFIX}
+	 * bytes.
 	 *
-	 * @param fileName name of the data source.
-	 * @param input <code>null</code> or a <b>resettable</i> input stream containing data.
-	 * @param mimeTypeFromMetadata mimetype declared in metadata.
-	 * @return the supposed mime type or <code>null</code> if nothing appropriate found.
-	 * @throws IllegalArgumentException if <i>input</i> is not <code>null</code> and is not resettable.
+	 * @param file
+	 * @return one of {@link #TURTLE}, {@link #NTRIPLES}, {@link #N3},
+	 *         {@link #NQUADS} and {@link #TRIG}
+	 * @throws IOException
 	 */
-	public String guessType(File file){
-
-		InputStream input=null;
+	public String guessType(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
 		try {
-			input = getInputStream(file);
-			purify(input);
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			byte[] buf = new byte[PREFIX];
+			int length = 0;
+			int read;
+			while (length < buf.length
+					&& (read = in.read(buf, length, buf.length - length)) != -1)
+				length += read;
+			return detect(buf, 0, length);
+		} finally {
+			in.close();
 		}
+	}
 
-		String format=TURTLE;
-		try {
-			if( checkTrixFormat(input) ) {
-				format=TRIX;
-			}
-			else if( checkN3Format(input) ) {
-				format=N3;
-			} else if( checkNQuadsFormat(input) ) {
-				format=NQUADS;
-			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} 
-
+	/**
+	 * Returns the position after the IRI starting at the given position, or
+	 * -1 if it does not end before the given end.
+	 */
+	private static int skipIRI(byte[] buf, int i, int end) {
+		for (i++; i < end; i++)
+			if (buf[i] == '>')
+				return i + 1;
+		return -1;
+	}
 
+	/**
+	 * Returns the position after the string starting at the given position,
+	 * short or long, or -1 if it does not end before the given end.
+	 */
+	private static int skipString(byte[] buf, int i, int end) {
+		byte quote = buf[i];
+		boolean isLong = i + 2 < end && buf[i + 1] == quote
+				&& buf[i + 2] == quote;
+		i += isLong ? 3 : 1;
+		while (i < end) {
+			byte b = buf[i];
+			if (b == '\\') {
+				i += 2;
+			} else if (b != quote) {
+				i++;
+			} else if (!isLong) {
+				return i + 1;
+			} else if (i + 2 < end && buf[i + 1] == quote
+					&& buf[i + 2] == quote) {
+				// the closing quotes may be preceded by more quotes:
+				while (i + 3 < end && buf[i + 3] == quote)
+					i++;
+				return i + 3;
+			} else {
+				i++;
+			}
+		}
+		return -1;
+	}
 
-		return format;
+	/**
+	 * Returns the position after the name starting at the given position,
+	 * which may be a prefixed name, a blank node label, a language tag, a
+	 * keyword or a number. A name does not end with a dot, so that the dot
+	 * that ends a statement is left alone.
+	 */
+	private static int skipName(byte[] buf, int i, int end) {
+		int start = i;
+		while (i < end && isNameByte(buf[i]))
+			i++;
+		while (i > start && buf[i - 1] == '.')
+			i--;
+		return i;
 	}
 
-	private static InputStream getInputStream(File file) throws IOException {
-		FileInputStream fis = new FileInputStream(file);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		byte[] buffer = new byte[4096];
-		while (fis.read(buffer) != -1) {
-			bos.write(buffer);
-		}
-		fis.close();
-		InputStream bais;
-		bais = new ByteArrayInputStream(bos.toByteArray());
-		return bais;
+	private static boolean isNameByte(byte b) {
+		return b < 0 || b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z'
+				|| isDigit(b) || b == '_' || b == '-' || b == ':' || b == '.'
+				|| b == '%';
 	}
 
-    public void purify(InputStream inputStream) throws IOException {
-        if(!inputStream.markSupported())
-            throw new IllegalArgumentException("Provided InputStream does not support marks");
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
 
-        // mark the current position
-        inputStream.mark(Integer.MAX_VALUE);
-        int byteRead = inputStream.read();
-        char charRead = (char) byteRead;
-        while(isBlank(charRead) && (byteRead != -1)) {
-            // if here means that the previos character must be removed, so mark.
-            inputStream.mark(Integer.MAX_VALUE);            
-            byteRead = inputStream.read();
-            charRead = (char) byteRead;
-        }
-        // if exit go back to the last valid mark.
-        inputStream.reset();
-    }
-    
-    private boolean isBlank(char c) {
-        return c == '\t' || c == '\n' || c == ' ' || c == '\r' || c == '\b' || c == '\f';
-    }
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f';
+	}
 
+	// compares an ASCII keyword without decoding the bytes:
+	private static boolean is(byte[] buf, int start, int end, String keyword) {
+		if (end - start != keyword.length())
+			return false;
+		for (int i = 0; i < keyword.length(); i++)
+			if (buf[start + i] != keyword.charAt(i))
+				return false;
+		return true;
+	}
 }
-
@@ -0,0 +1,539 @@
+// Copyright 2011 Carsten Keler, carsten.kessler@uni-muenster.de	
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// This basically means: do with the code whatever your want.
+package de.lodum.rdfpad.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.RedirectListener;
+
+/**
+ * Downloads pad contents from the etherpads without blocking the thread that
+ * asks for them: requests are sent through Jetty's asynchronous HTTP client and
+ * the result is handed to a callback once the response has arrived.
+ * <p>
+ * Connections are kept alive and reused, up to a maximum number per etherpad
+ * host; downloads beyond that wait for a free connection. Each host also has
+ * a bulkhead: once as many downloads as fit into its connections and its
+ * queue are in progress, further downloads from that host fail right away
+ * with a {@link HostUnavailableException}, so that a single slow etherpad
+ * cannot tie up the client for all others.
+ * <p>
+ * A host that has failed to answer several times in a row is not asked at
+ * all for a cool-off period, during which its downloads fail right away with
+ * a {@link HostUnavailableException} as well, see {@link CircuitBreaker}.
+ */
+public class UpstreamClient {
+
+	/**
+	 * Default time a download may take, in seconds. Can be set via the system
+	 * property <code>rdfpad.upstream.timeout</code>.
+	 */
+	public static final long DEFAULT_TIMEOUT = 30;
+
+	/**
+	 * Default time to establish a connection, in seconds. Can be set via the
+	 * system property <code>rdfpad.upstream.connect</code>.
+	 */
+	public static final long DEFAULT_CONNECT_TIMEOUT = 5;
+
+	/**
+	 * Default time a connection may stay silent while a response is read,
+	 * which is also how long an unused connection is kept open, in seconds.
+	 * Can be set via the system property <code>rdfpad.upstream.read</code>.
+	 */
+	public static final long DEFAULT_READ_TIMEOUT = 10;
+
+	/**
+	 * Default number of connections per etherpad host. Can be set via the
+	 * system property <code>rdfpad.upstream.connections</code>.
+	 */
+	public static final int DEFAULT_CONNECTIONS = 8;
+
+	/**
+	 * Default number of downloads per etherpad host that may wait for a
+	 * connection. Can be set via the system property
+	 * <code>rdfpad.upstream.queue</code>.
+	 */
+	public static final int DEFAULT_QUEUE = 32;
+
+	/**
+	 * Default number of failures in a row after which an etherpad host is
+	 * not asked for a while. Can be set via the system property
+	 * <code>rdfpad.upstream.failures</code>.
+	 */
+	public static final int DEFAULT_FAILURES = 5;
+
+	/**
+	 * Default time an etherpad host that keeps failing is not asked, in
+	 * seconds. Can be set via the system property
+	 * <code>rdfpad.upstream.cooloff</code>.
+	 */
+	public static final long DEFAULT_COOL_OFF = 30;
+
+	/**
+	 * Receives the outcome of a download.
+	 */
+	public interface Callback {
+
+		/**
+		 * Called with the response body once a download has succeeded.
+		 *
+		 * @param content
+		 */
+		void completed(byte[] content);
+
+		/**
+		 * Called if a download has failed, timed out or returned a status
+		 * other than 200.
+		 *
+		 * @param failure
+		 */
+		void failed(Throwable failure);
+	}
+
+	private static final Histogram DOWNLOAD_TIME = Metrics.histogram(
+			"rdfpad_upstream_seconds",
+			"Time to download pad contents from the etherpad.");
+	private static final Counter BYTES_IN = Metrics.counter(
+			"rdfpad_upstream_bytes_total",
+			"Pad contents downloaded from the etherpads, in bytes.");
+
+	private final HttpClient client = new HttpClient();
+	private final long timeout;
+	private final int connections;
+	private final int queue;
+	private final int failures;
+	private final long coolOff;
+
+	/**
+	 * The downloads in progress or waiting for an etherpad host, and whether
+	 * it answers.
+	 */
+	private static class Host {
+		final AtomicInteger active = new AtomicInteger();
+		final CircuitBreaker breaker;
+
+		Host(CircuitBreaker breaker) {
+			this.breaker = breaker;
+		}
+	}
+
+	// by host and port:
+	private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+	/**
+	 * Creates a client configured from the system properties
+	 * <code>rdfpad.upstream.timeout</code>,
+	 * <code>rdfpad.upstream.connect</code>,
+	 * <code>rdfpad.upstream.read</code> (all in seconds),
+	 * <code>rdfpad.upstream.connections</code>,
+	 * <code>rdfpad.upstream.queue</code>,
+	 * <code>rdfpad.upstream.failures</code> and
+	 * <code>rdfpad.upstream.cooloff</code> (seconds).
+	 */
+	public UpstreamClient() {
+		this(Long.getLong("rdfpad.upstream.timeout", DEFAULT_TIMEOUT) * 1000,
+				Long.getLong("rdfpad.upstream.connect",
+						DEFAULT_CONNECT_TIMEOUT) * 1000, Long.getLong(
+						"rdfpad.upstream.read", DEFAULT_READ_TIMEOUT) * 1000,
+				Integer.getInteger("rdfpad.upstream.connections",
+						DEFAULT_CONNECTIONS), Integer.getInteger(
+						"rdfpad.upstream.queue", DEFAULT_QUEUE), Integer
+						.getInteger("rdfpad.upstream.failures",
+								DEFAULT_FAILURES), Long.getLong(
+						"rdfpad.upstream.cooloff", DEFAULT_COOL_OFF) * 1000);
+	}
+
+	/**
+	 * @param timeout
+	 *            time a download may take, in milliseconds
+	 */
+	public UpstreamClient(long timeout) {
+		this(timeout, DEFAULT_CONNECT_TIMEOUT * 1000,
+				DEFAULT_READ_TIMEOUT * 1000, DEFAULT_CONNECTIONS, DEFAULT_QUEUE,
+				DEFAULT_FAILURES, DEFAULT_COOL_OFF * 1000);
+	}
+
+	/**
+	 * @param timeout
+	 *            time a download may take, in milliseconds
+	 * @param connectTimeout
+	 *            time to establish a connection, in milliseconds
+	 * @param readTimeout
+	 *            time a connection may stay silent, in milliseconds
+	 * @param connections
+	 *            connections per etherpad host
+	 * @param queue
+	 *            downloads per etherpad host that may wait for a connection
+	 * @param failures
+	 *            failures in a row after which an etherpad host is not asked
+	 *            for a while
+	 * @param coolOff
+	 *            time such a host is not asked, in milliseconds
+	 */
+	public UpstreamClient(long timeout, long connectTimeout, long readTimeout,
+			int connections, int queue, int failures, long coolOff) {
+		this.timeout = timeout;
+		this.connections = Math.max(1, connections);
+		this.queue = Math.max(0, queue);
+		this.failures = failures;
+		this.coolOff = coolOff;
+		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+		client.setTimeout(timeout);
+		client.setConnectTimeout((int) Math.min(connectTimeout,
+				Integer.MAX_VALUE));
+		client.setIdleTimeout(readTimeout);
+		client.setMaxConnectionsPerAddress(this.connections);
+		client.registerListener(RedirectListener.class.getName());
+	}
+
+	public void start() throws Exception {
+		client.start();
+	}
+
+	public void stop() throws Exception {
+		client.stop();
+	}
+
+	/**
+	 * Returns the time a download may take, in milliseconds.
+	 *
+	 * @return
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of etherpad hosts that are not asked at the moment
+	 * because they have failed too often.
+	 *
+	 * @return
+	 */
+	public int getUnavailableHosts() {
+		int open = 0;
+		for (Host host : hosts.values())
+			if (host.breaker.isOpen())
+				open++;
+		return open;
+	}
+
+	/**
+	 * Starts downloading the given URL and returns immediately; the callback
+	 * is invoked from one of the client's threads, or right away if the host
+	 * has too many downloads in progress or is not being asked.
+	 *
+	 * @param url
+	 * @param callback
+	 */
+	public void fetch(final String url, Callback callback) {
+		Host host;
+		try {
+			host = acquire(url);
+		} catch (IOException e) {
+			callback.failed(e);
+			return;
+		}
+		send(new Download(url, host.breaker, measure(url, release(host,
+				callback))));
+	}
+
+	/**
+	 * Asks for the given URL and waits for the response headers only, going
+	 * through the same connections and limits as downloads. The rest of the
+	 * response is read in the background, so that the connection can be
+	 * reused.
+	 *
+	 * @param url
+	 * @return the Content-Length of the response, whatever its status, or -1
+	 *         if it has none
+	 * @throws IOException
+	 *             if there is no response, e.g. because the host is
+	 *             unreachable, has too many downloads in progress or is not
+	 *             being asked
+	 */
+	public long getContentLength(String url) throws IOException {
+		final CountDownLatch headers = new CountDownLatch(1);
+		final long[] length = new long[1];
+		final Throwable[] failure = new Throwable[1];
+		Callback done = new Callback() {
+			public void completed(byte[] content) {
+				headers.countDown();
+			}
+
+			public void failed(Throwable x) {
+				synchronized (failure) {
+					if (headers.getCount() > 0)
+						failure[0] = x;
+				}
+				headers.countDown();
+			}
+		};
+		Host host = acquire(url);
+		send(new Download(url, host.breaker, release(host, done)) {
+			@Override
+			protected void onResponseHeaderComplete() throws IOException {
+				super.onResponseHeaderComplete();
+				length[0] = getResponseFields().getLongField("Content-Length");
+				// the slot is not needed for the rest:
+				callback.completed(null);
+			}
+
+			@Override
+			protected void onResponseComplete() {
+			}
+		});
+		await(headers, url);
+		synchronized (failure) {
+			if (failure[0] != null)
+				throw failure(url, failure[0]);
+			return length[0];
+		}
+	}
+
+	private void send(Download download) {
+		try {
+			client.send(download);
+		} catch (IOException e) {
+			download.breaker.failed();
+			download.callback.failed(failure(download.url, e));
+		}
+	}
+
+	/**
+	 * Takes one of the download slots of the host of the given URL.
+	 *
+	 * @param url
+	 * @return the host, whose slot is to be released when the download is
+	 *         done
+	 * @throws HostUnavailableException
+	 *             if the slots are all taken, or the host has failed too
+	 *             often to be asked
+	 */
+	private Host acquire(String url) throws IOException {
+		String address = getAddress(url);
+		Host host = hosts.get(address);
+		if (host == null) {
+			Host created = new Host(new CircuitBreaker(failures, coolOff));
+			host = hosts.putIfAbsent(address, created);
+			if (host == null)
+				host = created;
+		}
+		if (host.active.incrementAndGet() > connections + queue) {
+			host.active.decrementAndGet();
+			reject(url);
+			throw new HostUnavailableException("Too many downloads from "
+					+ address + " in progress");
+		}
+		// asked last, as this may let through the trial request:
+		if (!host.breaker.allow()) {
+			host.active.decrementAndGet();
+			reject(url);
+			throw new HostUnavailableException(address
+					+ " is not answering, next try in "
+					+ (host.breaker.getRemaining() + 999) / 1000 + " s");
+		}
+		return host;
+	}
+
+	private static void reject(String url) {
+		Metrics.counter("rdfpad_upstream_rejected_total",
+				"Downloads refused because the host had too many in "
+						+ "progress or kept failing, per etherpad host.",
+				"host", getHost(url)).increment();
+	}
+
+	/**
+	 * Wraps a callback so that the slot taken by the download is given back
+	 * once, whatever the outcome.
+	 */
+	private static Callback release(final Host host, final Callback callback) {
+		final AtomicBoolean released = new AtomicBoolean();
+		return new Callback() {
+			public void completed(byte[] content) {
+				if (released.compareAndSet(false, true))
+					host.active.decrementAndGet();
+				callback.completed(content);
+			}
+
+			public void failed(Throwable failure) {
+				if (released.compareAndSet(false, true))
+					host.active.decrementAndGet();
+				callback.failed(failure);
+			}
+		};
+	}
+
+	/**
+	 * Wraps a callback so that the download time, the bytes downloaded and
+	 * the failures per host are recorded.
+	 */
+	private static Callback measure(final String url, final Callback callback) {
+		final long start = System.nanoTime();
+		return new Callback() {
+			public void completed(byte[] content) {
+				DOWNLOAD_TIME.recordSince(start);
+				BYTES_IN.add(content.length);
+				callback.completed(content);
+			}
+
+			public void failed(Throwable failure) {
+				DOWNLOAD_TIME.recordSince(start);
+				Metrics.counter("rdfpad_upstream_errors_total",
+						"Failed downloads per etherpad host.", "host",
+						getHost(url)).increment();
+				callback.failed(failure);
+			}
+		};
+	}
+
+	/**
+	 * An exchange that hands its outcome to a callback, and tells the circuit
+	 * breaker of the host whether it has answered.
+	 */
+	private static class Download extends ContentExchange {
+
+		final String url;
+		final CircuitBreaker breaker;
+		final Callback callback;
+
+		Download(String url, CircuitBreaker breaker, Callback callback) {
+			super(true);
+			this.url = url;
+			this.breaker = breaker;
+			this.callback = callback;
+			setURL(url);
+		}
+
+		@Override
+		protected void onResponseHeaderComplete() throws IOException {
+			super.onResponseHeaderComplete();
+			if (getResponseStatus() >= 500)
+				breaker.failed();
+			else
+				breaker.succeeded();
+		}
+
+		@Override
+		protected void onResponseComplete() throws IOException {
+			super.onResponseComplete();
+			if (getResponseStatus() != 200) {
+				callback.failed(new HttpStatusException(getResponseStatus(),
+						url));
+				return;
+			}
+			byte[] content = getResponseContentBytes();
+			callback.completed(content == null ? new byte[0] : content);
+		}
+
+		@Override
+		protected void onConnectionFailed(Throwable x) {
+			breaker.failed();
+			callback.failed(failure(url, x));
+		}
+
+		@Override
+		protected void onException(Throwable x) {
+			breaker.failed();
+			callback.failed(failure(url, x));
+		}
+
+		@Override
+		protected void onExpire() {
+			breaker.failed();
+			callback.failed(new SocketTimeoutException("timed out: " + url));
+		}
+	}
+
+	private static String getHost(String url) {
+		try {
+			return new URL(url).getHost();
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+	// host and port, as the connections are pooled by:
+	private static String getAddress(String url) {
+		try {
+			URL u = new URL(url);
+			return u.getHost() + ":"
+					+ (u.getPort() == -1 ? u.getDefaultPort() : u.getPort());
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+	private static IOException failure(String url, Throwable cause) {
+		if (cause instanceof HostUnavailableException)
+			return (IOException) cause;
+		IOException e = new IOException("Could not fetch " + url + ": "
+				+ cause);
+		e.initCause(cause);
+		return e;
+	}
+
+	private static void await(CountDownLatch done, String url)
+			throws IOException {
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while fetching "
+					+ url);
+		}
+	}
+
+	/**
+	 * Downloads the given URL and waits for the result.
+	 *
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] fetch(String url) throws IOException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final Object[] result = new Object[1];
+		fetch(url, new Callback() {
+			public void completed(byte[] content) {
+				result[0] = content;
+				done.countDown();
+			}
+
+			public void failed(Throwable failure) {
+				result[0] = failure;
+				done.countDown();
+			}
+		});
+		await(done, url);
+		if (result[0] instanceof byte[])
+			return (byte[]) result[0];
+		if (result[0] instanceof IOException)
+			throw (IOException) result[0];
+		throw new IOException((Throwable) result[0]);
+	}
+}